@@ -1,5 +1,6 @@
 package jaligner;
 
+import jaligner.matrix.EncodedMatrix;
 import jaligner.matrix.Matrix;
 
 public class BLOSUM62
@@ -46,4 +47,10 @@ public class BLOSUM62
         }
         return new Matrix("BLOSUM62", scores);
     }
+
+    // Dense BLOSUM62 indexed by residue codes, see EncodedMatrix
+    public static EncodedMatrix LoadEncoded()
+    {
+        return new EncodedMatrix(Load(), acids);
+    }
 }
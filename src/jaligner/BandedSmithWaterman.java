@@ -0,0 +1,156 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package jaligner;
+
+/**
+ * Smith-Waterman-Gotoh score kernel restricted to a band of diagonals of the
+ * dynamic programming matrix. Only the cells of the band are computed, the
+ * cells outside of it can neither start nor extend a path. Along with the
+ * scores, the kernel keeps whether the best path of each cell goes through a
+ * diagonal on the edge of the band: if the best path of the best cell does,
+ * a better path may leave the band, see
+ * {@link SmithWatermanGotoh#scoreBanded(Sequence, QueryProfile, float, float, int, int)}.
+ */
+
+final class BandedSmithWaterman {
+	/**
+	 * Edge flag of the gap score of a column
+	 */
+	private static final int G = 0x1;
+
+	/**
+	 * Edge flag of the best score of a column
+	 */
+	private static final int V = 0x2;
+
+	/**
+	 * Hidden constructor
+	 */
+	private BandedSmithWaterman() {
+		super();
+	}
+
+	/**
+	 * Computes the best local alignment score of the paths in a band
+	 *
+	 * @param a1
+	 *            sequence #1
+	 * @param length1
+	 *            number of residues of sequence #1
+	 * @param profile
+	 *            query profile of sequence #2
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param low
+	 *            lowest diagonal of the band, j - i for the cell of residues
+	 *            i of sequence #1 and j of sequence #2
+	 * @param high
+	 *            highest diagonal of the band
+	 * @return the best local alignment score in the band, or NaN if the best
+	 *         path goes through an edge of the band that is inside the matrix
+	 */
+	static float score(char[] a1, int length1, QueryProfile profile, float o,
+			float e, int low, int high) {
+		int m = length1 + 1;
+		int n = profile.length() + 1;
+		float[][] rows = profile.getRows();
+
+		// Diagonals on the edge of the band, none where the band ends with the
+		// matrix
+		int lowEdge = low > 1 - length1 ? low : Integer.MIN_VALUE;
+		int highEdge = high < n - 2 ? high : Integer.MAX_VALUE;
+
+		Scratch scratch = Scratch.get();
+		float f; // score of alignment x1...xi to y1...yi if xi aligns to yi
+		float[] g = scratch.floats(0, n); // score if xi aligns to a gap after yi
+		float h; // score if yi aligns to a gap after xi
+		float[] v = scratch.floats(1, n); // best score of alignment x1...xi to y1...yi
+		float vDiagonal, vLeft;
+
+		// Whether the best paths of g and v go through an edge of the band
+		byte[] edges = scratch.bytes(0, n);
+		boolean fEdge, hEdge, vDiagonalEdge, vLeftEdge;
+
+		for (int j = 0; j < n; j++) {
+			g[j] = Float.NEGATIVE_INFINITY;
+			v[j] = 0;
+			edges[j] = 0;
+		}
+
+		float g1, g2, h1, h2;
+		float max = 0;
+		boolean maxEdge = false;
+
+		// The band enters the columns in increasing order, so the column after
+		// it on a row still has its initial, empty, scores
+		for (int i = 1; i < m; i++) {
+			int first = Math.max(1, i + low);
+			int last = Math.min(n - 1, i + high);
+			if (first > last) {
+				continue;
+			}
+			float[] row = rows[a1[i - 1]];
+			h = Float.NEGATIVE_INFINITY;
+			hEdge = false;
+			vLeft = 0;
+			vLeftEdge = false;
+			vDiagonal = v[first - 1];
+			vDiagonalEdge = (edges[first - 1] & V) != 0;
+			for (int j = first; j <= last; j++) {
+				boolean edge = j - i == lowEdge || j - i == highEdge;
+
+				f = vDiagonal + row[j - 1];
+				fEdge = vDiagonalEdge;
+
+				g1 = g[j] - e;
+				g2 = v[j] - o;
+				boolean gEdge = g1 > g2 ? (edges[j] & G) != 0
+						: g1 < g2 ? (edges[j] & V) != 0 : edges[j] != 0;
+				g[j] = g1 > g2 ? g1 : g2;
+
+				h1 = h - e;
+				h2 = vLeft - o;
+				hEdge = h1 > h2 ? hEdge : h1 < h2 ? vLeftEdge : hEdge
+						|| vLeftEdge;
+				h = h1 > h2 ? h1 : h2;
+				hEdge |= edge;
+
+				vDiagonal = v[j];
+				vDiagonalEdge = (edges[j] & V) != 0;
+				v[j] = SmithWatermanGotoh.maximum(f, g[j], h, 0);
+
+				// Any of the best paths of the cell counts
+				boolean vEdge = v[j] > 0
+						&& (edge || (v[j] == f && fEdge)
+								|| (v[j] == g[j] && gEdge) || (v[j] == h && hEdge));
+				edges[j] = (byte) ((gEdge || edge ? G : 0) | (vEdge ? V : 0));
+				vLeft = v[j];
+				vLeftEdge = vEdge;
+
+				if (v[j] > max) {
+					max = v[j];
+					maxEdge = vEdge;
+				} else if (v[j] == max) {
+					maxEdge |= vEdge;
+				}
+			}
+		}
+		return maxEdge ? Float.NaN : max;
+	}
+}
@@ -0,0 +1,483 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package jaligner;
+
+import java.util.Arrays;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Striped Smith-Waterman-Gotoh score kernels on 8-bit and 16-bit integer
+ * lanes. Scores and gap penalties are scaled by {@link #SCALE} so that
+ * integer matrices with half-integer gap penalties (such as BLOSUM62 with
+ * 10/0.5) are exact. A pair is first scored on 8-bit lanes and only promoted
+ * to 16-bit lanes, then to the float kernel of {@link StripedSmithWaterman},
+ * when its score gets too high for the lanes, so the result is always the same
+ * as the one of the float kernels.
+ * <p>
+ * In decision mode, a target above the highest score the 8-bit lanes can
+ * hold (for BLOSUM62 with a scale of 2, a scaled target above 105) can only
+ * be reached by overflowing them, so such pairs go straight to the 16-bit
+ * lanes instead of being scored twice.
+ * <p>
+ * The Vector API has no saturating additions, so instead of saturating the
+ * kernels stop as soon as the best score of a row is high enough for the next
+ * row to overflow. All gap scores are kept above <code>-o</code>, which is
+ * the lowest gap score of the recurrence, so they can not underflow either.
+ * <p>
+ * This class is only loaded when the <code>jdk.incubator.vector</code> module
+ * is available, see {@link SmithWatermanGotoh#setEngine(int)}.
+ */
+
+final class IntegerSmithWaterman {
+	/**
+	 * Scale of the scores and gap penalties
+	 */
+	static final int SCALE = 2;
+
+	/**
+	 * Returned by the kernels when the lanes are too narrow for the score
+	 */
+	private static final int OVERFLOW = -1;
+
+	/**
+	 * Vector shape used for 8-bit scores
+	 */
+	private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+
+	/**
+	 * Vector shape used for 16-bit scores
+	 */
+	private static final VectorSpecies<Short> SHORTS = ShortVector.SPECIES_PREFERRED;
+
+	/**
+	 * Hidden constructor
+	 */
+	private IntegerSmithWaterman() {
+		super();
+	}
+
+	/**
+	 * Computes the best local alignment score of a sequence against a query
+	 * profile. The result is the same as the one of the scalar kernel of
+	 * {@link SmithWatermanGotoh}.
+	 *
+	 * @param a1
+	 *            sequence #1
+	 * @param length1
+	 *            number of residues of sequence #1
+	 * @param profile
+	 *            query profile of sequence #2
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @return the best local alignment score
+	 */
+	static float score(char[] a1, int length1, QueryProfile profile, float o,
+			float e) {
+		return score(a1, length1, profile, o, e, Float.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Computes the best local alignment score of a sequence against a query
+	 * profile, stopping as soon as it is known to reach a target or not
+	 *
+	 * @param a1
+	 *            sequence #1
+	 * @param length1
+	 *            number of residues of sequence #1
+	 * @param profile
+	 *            query profile of sequence #2
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param target
+	 *            score at which to stop
+	 * @return the best local alignment score, or when stopped early a score
+	 *         on the same side of the target as the best one
+	 */
+	static float score(char[] a1, int length1, QueryProfile profile,
+			float o, float e, float target) {
+		if (length1 == 0 || profile.length() == 0) {
+			return 0;
+		}
+		float open = o * SCALE;
+		float extend = e * SCALE;
+		int score = OVERFLOW;
+		if (open == (int) open && extend == (int) extend && extend >= 0
+				&& extend <= open) {
+			int maxScore = (int) Math.max(0, profile.getMaxScore() * SCALE);
+			float[] best = target == Float.POSITIVE_INFINITY ? null : profile
+					.getBestScores();
+			int byteLimit = Byte.MAX_VALUE - maxScore;
+			if (profile.getByteRows() != null
+					&& open + extend <= Byte.MAX_VALUE
+					&& (best == null || target * SCALE <= byteLimit)) {
+				score = score(a1, length1, profile.getByteRows(), profile.length(),
+						(byte) open, (byte) extend, (byte) byteLimit, best,
+						target);
+			}
+			if (score == OVERFLOW && profile.getShortRows() != null
+					&& open + extend <= Short.MAX_VALUE) {
+				score = score(a1, length1, profile.getShortRows(), profile.length(),
+						(short) open, (short) extend,
+						(short) (Short.MAX_VALUE - maxScore), best, target);
+			}
+		}
+		if (score == OVERFLOW) {
+			return StripedSmithWaterman.score(a1, length1, profile, o, e,
+					target);
+		}
+		return score / (float) SCALE;
+	}
+
+	/**
+	 * 8-bit striped kernel
+	 *
+	 * @param a1
+	 *            sequence #1
+	 * @param length1
+	 *            number of residues of sequence #1
+	 * @param profile
+	 *            striped scaled scores of the query for every residue of a1
+	 * @param length
+	 *            length of the query
+	 * @param o
+	 *            scaled open gap penalty
+	 * @param e
+	 *            scaled extend gap penalty
+	 * @param limit
+	 *            highest score of a row that can not overflow in the next row
+	 * @param best
+	 *            best score of each residue against the query, or null to
+	 *            compute the whole matrix
+	 * @param target
+	 *            score at which to stop, when best is not null
+	 * @return the best scaled local alignment score, or when stopped early a
+	 *         score on the same side of the target as the best one, or
+	 *         {@link #OVERFLOW}
+	 */
+	private static int score(char[] a1, int length1, byte[][] profile,
+			int length, byte o, byte e, byte limit, float[] best, float target) {
+		int lanes = BYTES.length();
+		int segments = (length + lanes - 1) / lanes;
+		int size = segments * lanes;
+
+		Scratch scratch = Scratch.get();
+		byte[] hLoad = scratch.bytes(0, size); // scores of the previous row
+		byte[] hStore = scratch.bytes(1, size); // scores of the current row
+		byte[] gaps = scratch.bytes(2, size); // scores if a1 aligns to a gap
+		Arrays.fill(hLoad, 0, size, (byte) 0);
+		Arrays.fill(hStore, 0, size, (byte) 0);
+		Arrays.fill(gaps, 0, size, (byte) -o);
+
+		ByteVector zero = ByteVector.zero(BYTES);
+		ByteVector floor = ByteVector.broadcast(BYTES, (byte) -o);
+		ByteVector vMax;
+		ByteVector vH, vE, vF, vOpen;
+		byte[] swap;
+		int max = 0;
+		int rowMax;
+
+		// Best scores the rows left to compute can add
+		float remaining = 0;
+		if (best != null) {
+			for (int i = 0; i < length1; i++) {
+				remaining += best[a1[i]];
+			}
+		}
+
+		for (int i = 0; i < length1; i++) {
+			byte[] p = profile[a1[i]];
+
+			vH = zero.slice(lanes - 1,
+					ByteVector.fromArray(BYTES, hStore, size - lanes));
+			vF = floor;
+			vMax = zero;
+
+			swap = hLoad;
+			hLoad = hStore;
+			hStore = swap;
+
+			for (int k = 0, offset = 0; k < segments; k++, offset += lanes) {
+				vH = vH.add(ByteVector.fromArray(BYTES, p, offset));
+				vE = ByteVector.fromArray(BYTES, gaps, offset);
+				vH = vH.max(vE).max(vF).max(zero);
+				vMax = vMax.max(vH);
+				vH.intoArray(hStore, offset);
+
+				vOpen = vH.sub(o);
+				vE.sub(e).max(vOpen).intoArray(gaps, offset);
+				vF = vF.sub(e).max(vOpen);
+
+				vH = ByteVector.fromArray(BYTES, hLoad, offset);
+			}
+
+			vF = floor.slice(lanes - 1, vF);
+			for (int k = 0;;) {
+				int offset = k * lanes;
+				vH = ByteVector.fromArray(BYTES, hStore, offset);
+				if (!vF.compare(VectorOperators.GT, vH.sub((byte) (o - e)))
+						.anyTrue()) {
+					break;
+				}
+				vH = vH.max(vF);
+				vMax = vMax.max(vH);
+				vH.intoArray(hStore, offset);
+				ByteVector.fromArray(BYTES, gaps, offset).max(vH.sub(o))
+						.intoArray(gaps, offset);
+				vF = vF.sub(e).max(floor);
+				if (++k == segments) {
+					k = 0;
+					vF = floor.slice(lanes - 1, vF);
+				}
+			}
+
+			rowMax = vMax.reduceLanes(VectorOperators.MAX);
+			if (rowMax > limit) {
+				return OVERFLOW;
+			}
+			if (rowMax > max) {
+				max = rowMax;
+			}
+			if (best != null) {
+				remaining -= best[a1[i]];
+				if (max >= target * SCALE
+						|| rowMax + remaining * SCALE < target * SCALE) {
+					break;
+				}
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * 16-bit striped kernel
+	 *
+	 * @param a1
+	 *            sequence #1
+	 * @param length1
+	 *            number of residues of sequence #1
+	 * @param profile
+	 *            striped scaled scores of the query for every residue of a1
+	 * @param length
+	 *            length of the query
+	 * @param o
+	 *            scaled open gap penalty
+	 * @param e
+	 *            scaled extend gap penalty
+	 * @param limit
+	 *            highest score of a row that can not overflow in the next row
+	 * @param best
+	 *            best score of each residue against the query, or null to
+	 *            compute the whole matrix
+	 * @param target
+	 *            score at which to stop, when best is not null
+	 * @return the best scaled local alignment score, or when stopped early a
+	 *         score on the same side of the target as the best one, or
+	 *         {@link #OVERFLOW}
+	 */
+	private static int score(char[] a1, int length1, short[][] profile,
+			int length, short o, short e, short limit, float[] best,
+			float target) {
+		int lanes = SHORTS.length();
+		int segments = (length + lanes - 1) / lanes;
+		int size = segments * lanes;
+
+		Scratch scratch = Scratch.get();
+		short[] hLoad = scratch.shorts(0, size); // scores of the previous row
+		short[] hStore = scratch.shorts(1, size); // scores of the current row
+		short[] gaps = scratch.shorts(2, size); // scores if a1 aligns to a gap
+		Arrays.fill(hLoad, 0, size, (short) 0);
+		Arrays.fill(hStore, 0, size, (short) 0);
+		Arrays.fill(gaps, 0, size, (short) -o);
+
+		ShortVector zero = ShortVector.zero(SHORTS);
+		ShortVector floor = ShortVector.broadcast(SHORTS, (short) -o);
+		ShortVector vMax;
+		ShortVector vH, vE, vF, vOpen;
+		short[] swap;
+		int max = 0;
+		int rowMax;
+
+		// Best scores the rows left to compute can add
+		float remaining = 0;
+		if (best != null) {
+			for (int i = 0; i < length1; i++) {
+				remaining += best[a1[i]];
+			}
+		}
+
+		for (int i = 0; i < length1; i++) {
+			short[] p = profile[a1[i]];
+
+			vH = zero.slice(lanes - 1,
+					ShortVector.fromArray(SHORTS, hStore, size - lanes));
+			vF = floor;
+			vMax = zero;
+
+			swap = hLoad;
+			hLoad = hStore;
+			hStore = swap;
+
+			for (int k = 0, offset = 0; k < segments; k++, offset += lanes) {
+				vH = vH.add(ShortVector.fromArray(SHORTS, p, offset));
+				vE = ShortVector.fromArray(SHORTS, gaps, offset);
+				vH = vH.max(vE).max(vF).max(zero);
+				vMax = vMax.max(vH);
+				vH.intoArray(hStore, offset);
+
+				vOpen = vH.sub(o);
+				vE.sub(e).max(vOpen).intoArray(gaps, offset);
+				vF = vF.sub(e).max(vOpen);
+
+				vH = ShortVector.fromArray(SHORTS, hLoad, offset);
+			}
+
+			vF = floor.slice(lanes - 1, vF);
+			for (int k = 0;;) {
+				int offset = k * lanes;
+				vH = ShortVector.fromArray(SHORTS, hStore, offset);
+				if (!vF.compare(VectorOperators.GT, vH.sub((short) (o - e)))
+						.anyTrue()) {
+					break;
+				}
+				vH = vH.max(vF);
+				vMax = vMax.max(vH);
+				vH.intoArray(hStore, offset);
+				ShortVector.fromArray(SHORTS, gaps, offset).max(vH.sub(o))
+						.intoArray(gaps, offset);
+				vF = vF.sub(e).max(floor);
+				if (++k == segments) {
+					k = 0;
+					vF = floor.slice(lanes - 1, vF);
+				}
+			}
+
+			rowMax = vMax.reduceLanes(VectorOperators.MAX);
+			if (rowMax > limit) {
+				return OVERFLOW;
+			}
+			if (rowMax > max) {
+				max = rowMax;
+			}
+			if (best != null) {
+				remaining -= best[a1[i]];
+				if (max >= target * SCALE
+						|| rowMax + remaining * SCALE < target * SCALE) {
+					break;
+				}
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Stripes all the rows of a query profile on 8-bit lanes
+	 *
+	 * @param rows
+	 *            scores indexed by residue then by query position
+	 * @param shared
+	 *            row shared by several residues, striped only once
+	 * @return striped scaled scores indexed by residue, or null if a score is
+	 *         not an integer or does not fit
+	 */
+	static byte[][] stripeBytes(float[][] rows, float[] shared) {
+		int lanes = BYTES.length();
+		int segments = (shared.length + lanes - 1) / lanes;
+		byte[][] striped = new byte[rows.length][];
+		byte[] stripedShared = null;
+		for (int c = 0; c < rows.length; c++) {
+			if (rows[c] == shared && stripedShared != null) {
+				striped[c] = stripedShared;
+				continue;
+			}
+			striped[c] = new byte[segments * lanes];
+			for (int k = 0, l = 0; k < segments; k++) {
+				for (int lane = 0; lane < lanes; lane++, l++) {
+					int j = lane * segments + k;
+					if (j >= rows[c].length) {
+						// Padding never scores, so it never starts nor
+						// extends a path
+						striped[c][l] = Byte.MIN_VALUE;
+						continue;
+					}
+					float score = rows[c][j] * SCALE;
+					if (score != (int) score || score > Byte.MAX_VALUE / 2
+							|| score < Byte.MIN_VALUE / 2) {
+						return null;
+					}
+					striped[c][l] = (byte) score;
+				}
+			}
+			if (rows[c] == shared) {
+				stripedShared = striped[c];
+			}
+		}
+		return striped;
+	}
+
+	/**
+	 * Stripes all the rows of a query profile on 16-bit lanes
+	 *
+	 * @param rows
+	 *            scores indexed by residue then by query position
+	 * @param shared
+	 *            row shared by several residues, striped only once
+	 * @return striped scaled scores indexed by residue, or null if a score is
+	 *         not an integer or does not fit
+	 */
+	static short[][] stripeShorts(float[][] rows, float[] shared) {
+		int lanes = SHORTS.length();
+		int segments = (shared.length + lanes - 1) / lanes;
+		short[][] striped = new short[rows.length][];
+		short[] stripedShared = null;
+		for (int c = 0; c < rows.length; c++) {
+			if (rows[c] == shared && stripedShared != null) {
+				striped[c] = stripedShared;
+				continue;
+			}
+			striped[c] = new short[segments * lanes];
+			for (int k = 0, l = 0; k < segments; k++) {
+				for (int lane = 0; lane < lanes; lane++, l++) {
+					int j = lane * segments + k;
+					if (j >= rows[c].length) {
+						// Padding never scores, so it never starts nor
+						// extends a path
+						striped[c][l] = Short.MIN_VALUE;
+						continue;
+					}
+					float score = rows[c][j] * SCALE;
+					if (score != (int) score || score > Short.MAX_VALUE / 2
+							|| score < Short.MIN_VALUE / 2) {
+						return null;
+					}
+					striped[c][l] = (short) score;
+				}
+			}
+			if (rows[c] == shared) {
+				stripedShared = striped[c];
+			}
+		}
+		return striped;
+	}
+}
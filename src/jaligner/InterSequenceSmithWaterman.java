@@ -0,0 +1,401 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package jaligner;
+
+import java.util.Arrays;
+import java.util.List;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Inter-sequence Smith-Waterman-Gotoh score kernels (Rognes, 2011) written
+ * with the JDK Vector API. Each vector lane holds a different target, so one
+ * pass over the query aligns as many targets as there are lanes, whatever
+ * their lengths. The targets are sorted by length and packed into the lanes in
+ * that order, so the targets sharing a pass have close lengths and few cells
+ * are wasted on padding.
+ * <p>
+ * The targets are first aligned on 16-bit lanes, with the scaled scores of
+ * {@link IntegerSmithWaterman}, and a pass whose scores get too high for the
+ * lanes is done again on float lanes. The float kernel computes the cells with
+ * the same operations, in the same order, as the scalar kernel of
+ * {@link SmithWatermanGotoh}, so the scores are always the same.
+ * <p>
+ * This class is only loaded when the <code>jdk.incubator.vector</code> module
+ * is available, see {@link SmithWatermanGotoh#setEngine(int)}.
+ */
+
+final class InterSequenceSmithWaterman {
+	/**
+	 * Vector shape used for float scores
+	 */
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+
+	/**
+	 * Vector shape used for 16-bit scores
+	 */
+	private static final VectorSpecies<Short> SHORTS = ShortVector.SPECIES_PREFERRED;
+
+	/**
+	 * Hidden constructor
+	 */
+	private InterSequenceSmithWaterman() {
+		super();
+	}
+
+	/**
+	 * Computes the best local alignment scores of many targets against a
+	 * query profile
+	 *
+	 * @param profile
+	 *            query profile of sequence #2
+	 * @param targets
+	 *            residues of the sequences #1
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param scores
+	 *            best local alignment score of each target, filled in
+	 */
+	static void score(QueryProfile profile, List<byte[]> targets, float o,
+			float e, float[] scores) {
+		int count = targets.size();
+		int n = profile.length();
+		if (count == 0) {
+			return;
+		}
+		if (n == 0) {
+			Arrays.fill(scores, 0, count, 0);
+			return;
+		}
+		float[][] matrix = profile.getMatrix().getScores();
+		char[] query = profile.getQuery();
+		Scratch scratch = Scratch.get();
+
+		// Distinct residues of the query, and their rank at every position
+		int[] rank = scratch.ints(1, matrix.length);
+		int[] ranks = scratch.ints(2, n);
+		Arrays.fill(rank, 0, matrix.length, -1);
+		int distinct = 0;
+		for (int j = 0; j < n; j++) {
+			if (rank[query[j]] < 0) {
+				rank[query[j]] = distinct++;
+			}
+			ranks[j] = rank[query[j]];
+		}
+
+		// Scores of every residue against the distinct query residues, the
+		// last row is the padding after the end of the targets: it never
+		// scores, so it never starts nor extends a path
+		int padding = matrix.length;
+		int size = (padding + 1) * distinct;
+		float[] table = scratch.floats(2, size);
+		Arrays.fill(table, padding * distinct, size, Float.NEGATIVE_INFINITY);
+		for (int c = 0; c < padding; c++) {
+			for (int j = 0; j < n; j++) {
+				table[c * distinct + ranks[j]] = matrix[c][query[j]];
+			}
+		}
+
+		// Targets by increasing length
+		long[] order = scratch.longs(0, count);
+		for (int t = 0; t < count; t++) {
+			order[t] = (long) targets.get(t).length << 32 | t;
+		}
+		Arrays.sort(order, 0, count);
+
+		float open = o * IntegerSmithWaterman.SCALE;
+		float extend = e * IntegerSmithWaterman.SCALE;
+		short[] scaled = null;
+		if (open == (int) open && extend == (int) extend && extend >= 0
+				&& extend <= open && open + extend <= Short.MAX_VALUE) {
+			scaled = scale(table, size, scratch.shorts(2, size));
+		}
+
+		byte[][] lanes = new byte[Math.max(SHORTS.length(), FLOATS.length())][];
+		int first = 0;
+		if (scaled != null) {
+			int limit = Short.MAX_VALUE
+					- (int) Math.max(0, profile.getMaxScore()
+							* IntegerSmithWaterman.SCALE);
+			for (; first < count; first += SHORTS.length()) {
+				int used = pack(targets, order, first, count, lanes,
+						SHORTS.length());
+				if (!score(lanes, used, ranks, n, scaled, distinct, padding,
+						(short) open, (short) extend, (short) limit, order,
+						first, scores)) {
+					// Too high for 16-bit lanes
+					int end = first + used;
+					for (int pass = first; pass < end; pass += FLOATS.length()) {
+						score(lanes, pack(targets, order, pass, end, lanes,
+								FLOATS.length()), ranks, n, table, distinct,
+								padding, o, e, order, pass, scores);
+					}
+				}
+			}
+		}
+		for (; first < count; first += FLOATS.length()) {
+			score(lanes, pack(targets, order, first, count, lanes,
+					FLOATS.length()), ranks, n, table, distinct, padding, o,
+					e, order, first, scores);
+		}
+	}
+
+	/**
+	 * Float kernel, aligns the targets of a pass
+	 *
+	 * @param lanes
+	 *            targets of the pass
+	 * @param used
+	 *            number of targets of the pass
+	 * @param ranks
+	 *            rank of the residue of each query position
+	 * @param n
+	 *            length of the query
+	 * @param table
+	 *            scores of every residue against the distinct query residues
+	 * @param distinct
+	 *            number of distinct query residues
+	 * @param padding
+	 *            residue of the padding row of the table
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param order
+	 *            targets by increasing length
+	 * @param first
+	 *            position in order of the first target of the pass
+	 * @param scores
+	 *            best local alignment score of each target, filled in
+	 */
+	private static void score(byte[][] lanes, int used, int[] ranks, int n,
+			float[] table, int distinct, int padding, float o, float e,
+			long[] order, int first, float[] scores) {
+		int width = FLOATS.length();
+		int m = 0;
+		for (int l = 0; l < used; l++) {
+			m = Math.max(m, lanes[l].length);
+		}
+
+		// Scores of each lane, interleaved: if xi aligns to a gap after yj,
+		// best score of alignment x1...xi to y1...yj, and scores of the
+		// residues xi against the distinct query residues
+		Scratch scratch = Scratch.get();
+		float[] g = scratch.floats(0, (n + 1) * width);
+		float[] v = scratch.floats(1, (n + 1) * width);
+		float[] row = scratch.floats(3, distinct * width);
+		Arrays.fill(g, 0, (n + 1) * width, Float.NEGATIVE_INFINITY);
+		Arrays.fill(v, 0, (n + 1) * width, 0);
+
+		FloatVector zero = FloatVector.zero(FLOATS);
+		FloatVector minusInfinity = FloatVector.broadcast(FLOATS,
+				Float.NEGATIVE_INFINITY);
+		FloatVector vMax = zero;
+		FloatVector f, vG, vH, vV, vLeft, vDiagonal;
+
+		for (int i = 0; i < m; i++) {
+			for (int l = 0; l < width; l++) {
+				int c = l < used && i < lanes[l].length ? lanes[l][i] & 0xff
+						: padding;
+				for (int k = 0, offset = l; k < distinct; k++, offset += width) {
+					row[offset] = table[c * distinct + k];
+				}
+			}
+
+			vLeft = zero;
+			vDiagonal = zero;
+			vH = minusInfinity;
+			for (int j = 1, offset = width; j <= n; j++, offset += width) {
+				f = vDiagonal.add(FloatVector.fromArray(FLOATS, row,
+						ranks[j - 1] * width));
+
+				vV = FloatVector.fromArray(FLOATS, v, offset);
+				vG = FloatVector.fromArray(FLOATS, g, offset).sub(e)
+						.max(vV.sub(o));
+				vG.intoArray(g, offset);
+
+				vH = vH.sub(e).max(vLeft.sub(o));
+
+				vDiagonal = vV;
+				vLeft = f.max(vG).max(vH).max(zero);
+				vLeft.intoArray(v, offset);
+				vMax = vMax.max(vLeft);
+			}
+		}
+
+		vMax.intoArray(g, 0);
+		for (int l = 0; l < used; l++) {
+			scores[(int) order[first + l]] = g[l];
+		}
+	}
+
+	/**
+	 * 16-bit kernel, aligns the targets of a pass. The gap scores start at
+	 * <code>-o</code> instead of minus infinity: once computed they can not be
+	 * lower, as the best scores are never negative.
+	 *
+	 * @param lanes
+	 *            targets of the pass
+	 * @param used
+	 *            number of targets of the pass
+	 * @param ranks
+	 *            rank of the residue of each query position
+	 * @param n
+	 *            length of the query
+	 * @param table
+	 *            scaled scores of every residue against the distinct query
+	 *            residues
+	 * @param distinct
+	 *            number of distinct query residues
+	 * @param padding
+	 *            residue of the padding row of the table
+	 * @param o
+	 *            scaled open gap penalty
+	 * @param e
+	 *            scaled extend gap penalty
+	 * @param limit
+	 *            highest score of a row that can not overflow in the next row
+	 * @param order
+	 *            targets by increasing length
+	 * @param first
+	 *            position in order of the first target of the pass
+	 * @param scores
+	 *            best local alignment score of each target, filled in
+	 * @return false if the scores got too high for the lanes
+	 */
+	private static boolean score(byte[][] lanes, int used, int[] ranks,
+			int n, short[] table, int distinct, int padding, short o,
+			short e, short limit, long[] order, int first, float[] scores) {
+		int width = SHORTS.length();
+		int m = 0;
+		for (int l = 0; l < used; l++) {
+			m = Math.max(m, lanes[l].length);
+		}
+
+		Scratch scratch = Scratch.get();
+		short[] g = scratch.shorts(0, (n + 1) * width);
+		short[] v = scratch.shorts(1, (n + 1) * width);
+		short[] row = scratch.shorts(3, distinct * width);
+		Arrays.fill(g, 0, (n + 1) * width, (short) -o);
+		Arrays.fill(v, 0, (n + 1) * width, (short) 0);
+
+		ShortVector zero = ShortVector.zero(SHORTS);
+		ShortVector floor = ShortVector.broadcast(SHORTS, (short) -o);
+		ShortVector vMax = zero;
+		ShortVector f, vG, vH, vV, vLeft, vDiagonal;
+
+		for (int i = 0; i < m; i++) {
+			for (int l = 0; l < width; l++) {
+				int c = l < used && i < lanes[l].length ? lanes[l][i] & 0xff
+						: padding;
+				for (int k = 0, offset = l; k < distinct; k++, offset += width) {
+					row[offset] = table[c * distinct + k];
+				}
+			}
+
+			vLeft = zero;
+			vDiagonal = zero;
+			vH = floor;
+			for (int j = 1, offset = width; j <= n; j++, offset += width) {
+				f = vDiagonal.add(ShortVector.fromArray(SHORTS, row,
+						ranks[j - 1] * width));
+
+				vV = ShortVector.fromArray(SHORTS, v, offset);
+				vG = ShortVector.fromArray(SHORTS, g, offset).sub(e)
+						.max(vV.sub(o));
+				vG.intoArray(g, offset);
+
+				vH = vH.sub(e).max(vLeft.sub(o));
+
+				vDiagonal = vV;
+				vLeft = f.max(vG).max(vH).max(zero);
+				vLeft.intoArray(v, offset);
+				vMax = vMax.max(vLeft);
+			}
+
+			if (vMax.reduceLanes(VectorOperators.MAX) > limit) {
+				return false;
+			}
+		}
+
+		vMax.intoArray(g, 0);
+		for (int l = 0; l < used; l++) {
+			scores[(int) order[first + l]] = g[l]
+					/ (float) IntegerSmithWaterman.SCALE;
+		}
+		return true;
+	}
+
+	/**
+	 * Puts the targets of a pass into the lanes
+	 *
+	 * @param targets
+	 *            residues of the sequences #1
+	 * @param order
+	 *            targets by increasing length
+	 * @param first
+	 *            position in order of the first target of the pass
+	 * @param end
+	 *            position in order after the last target that can be packed
+	 * @param lanes
+	 *            targets of the pass, filled in
+	 * @param width
+	 *            number of lanes
+	 * @return number of targets of the pass
+	 */
+	private static int pack(List<byte[]> targets, long[] order, int first,
+			int end, byte[][] lanes, int width) {
+		int used = Math.min(width, end - first);
+		for (int l = 0; l < used; l++) {
+			lanes[l] = targets.get((int) order[first + l]);
+		}
+		return used;
+	}
+
+	/**
+	 * Scales a table of scores to 16-bit integers
+	 *
+	 * @param table
+	 *            scores, minus infinity for the padding
+	 * @param length
+	 *            number of scores
+	 * @param scaled
+	 *            scaled scores, filled in
+	 * @return the scaled scores, or null if a score is not an integer or does
+	 *         not fit
+	 */
+	private static short[] scale(float[] table, int length, short[] scaled) {
+		for (int i = 0; i < length; i++) {
+			if (table[i] == Float.NEGATIVE_INFINITY) {
+				scaled[i] = Short.MIN_VALUE;
+				continue;
+			}
+			float score = table[i] * IntegerSmithWaterman.SCALE;
+			if (score != (int) score || score > Short.MAX_VALUE / 2
+					|| score < Short.MIN_VALUE / 2) {
+				return null;
+			}
+			scaled[i] = (short) score;
+		}
+		return scaled;
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package jaligner;
+
+import jaligner.matrix.Matrix;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Scores of every residue against every position of a query sequence. The
+ * profile is built once and can then be used to score the query against any
+ * number of sequences, from any number of threads: it is never modified after
+ * construction.
+ *
+ * @see SmithWatermanGotoh#score(Sequence, QueryProfile, float, float)
+ */
+
+public final class QueryProfile {
+	/**
+	 * Query sequence
+	 */
+	private final Sequence sequence;
+
+	/**
+	 * Residues of the query
+	 */
+	private final char[] query;
+
+	/**
+	 * Scoring matrix
+	 */
+	private final Matrix matrix;
+
+	/**
+	 * Scores indexed by residue then by query position
+	 */
+	private final float[][] rows;
+
+	/**
+	 * Scores indexed by residue, striped for {@link StripedSmithWaterman}, or
+	 * null if the Vector API is not available
+	 */
+	private final float[][] stripedRows;
+
+	/**
+	 * Scaled scores indexed by residue, striped on 8-bit lanes for
+	 * {@link IntegerSmithWaterman}, or null
+	 */
+	private final byte[][] byteRows;
+
+	/**
+	 * Scaled scores indexed by residue, striped on 16-bit lanes for
+	 * {@link IntegerSmithWaterman}, or null
+	 */
+	private final short[][] shortRows;
+
+	/**
+	 * Highest score of the profile
+	 */
+	private final float maxScore;
+
+	/**
+	 * Best positive score of each residue against any position of the query
+	 */
+	private final float[] bestScores;
+
+	/**
+	 * Best score any sequence can reach against the query: the sum over the
+	 * query positions of the best positive score of any residue
+	 */
+	private final float bestAchievable;
+
+	/**
+	 * Constructor
+	 *
+	 * @param sequence
+	 *            query sequence
+	 * @param matrix
+	 *            scoring matrix
+	 */
+	public QueryProfile(Sequence sequence, Matrix matrix) {
+		super();
+		this.sequence = sequence;
+		this.query = sequence.toArray();
+		this.matrix = matrix;
+
+		float[][] scores = matrix.getScores();
+		float[] zeros = new float[query.length]; // shared by residues that never score
+		float max = 0;
+		rows = new float[scores.length][];
+		bestScores = new float[scores.length];
+		for (int c = 0; c < scores.length; c++) {
+			float[] row = new float[query.length];
+			boolean empty = true;
+			for (int j = 0; j < query.length; j++) {
+				row[j] = scores[c][query[j]];
+				empty &= row[j] == 0;
+				bestScores[c] = Math.max(bestScores[c], row[j]);
+			}
+			rows[c] = empty ? zeros : row;
+			max = Math.max(max, bestScores[c]);
+		}
+		maxScore = max;
+
+		float best = 0;
+		for (int j = 0; j < query.length; j++) {
+			float column = 0;
+			for (int c = 0; c < scores.length; c++) {
+				column = Math.max(column, rows[c][j]);
+			}
+			best += column;
+		}
+		bestAchievable = best;
+
+		if (SmithWatermanGotoh.isVectorSupported()) {
+			stripedRows = StripedSmithWaterman.stripe(rows, zeros);
+			byteRows = IntegerSmithWaterman.stripeBytes(rows, zeros);
+			shortRows = IntegerSmithWaterman.stripeShorts(rows, zeros);
+		} else {
+			stripedRows = null;
+			byteRows = null;
+			shortRows = null;
+		}
+	}
+
+	/**
+	 * Constructor from residues given as bytes, for example the codes of an
+	 * {@link jaligner.matrix.EncodedMatrix}
+	 *
+	 * @param residues
+	 *            residues of the query
+	 * @param matrix
+	 *            scoring matrix indexed by the residues
+	 */
+	public QueryProfile(byte[] residues, Matrix matrix) {
+		this(new Sequence(new String(residues, StandardCharsets.ISO_8859_1)),
+				matrix);
+	}
+
+	/**
+	 * Returns the query sequence
+	 *
+	 * @return Returns the sequence
+	 */
+	public Sequence getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Returns the scoring matrix
+	 *
+	 * @return Returns the matrix
+	 */
+	public Matrix getMatrix() {
+		return matrix;
+	}
+
+	/**
+	 * Returns the length of the query
+	 *
+	 * @return query length
+	 */
+	public int length() {
+		return query.length;
+	}
+
+	/**
+	 * Returns the highest score of a residue against the query, or zero if
+	 * all the scores are negative
+	 *
+	 * @return highest score
+	 */
+	public float getMaxScore() {
+		return maxScore;
+	}
+
+	/**
+	 * Returns an upper bound of the local alignment score of a sequence
+	 * against the query, in O(m). No local alignment can score more than the
+	 * best score of each of its residues against any residue of the query, nor
+	 * more than the best score any sequence can reach against the query.
+	 *
+	 * @param sequence
+	 *            sequence to align to the query
+	 * @return upper bound of
+	 *         {@link SmithWatermanGotoh#score(Sequence, QueryProfile, float, float)}
+	 *         for any gap penalties
+	 */
+	public float upperBound(Sequence sequence) {
+		float bound = 0;
+		for (int i = 0, m = sequence.length(); i < m
+				&& bound < bestAchievable; i++) {
+			bound += bestScores[sequence.acidAt(i)];
+		}
+		return Math.min(bound, bestAchievable);
+	}
+
+	/**
+	 * Returns an upper bound of the local alignment score of a sequence of
+	 * residues given as bytes against the query, see
+	 * {@link #upperBound(Sequence)}
+	 *
+	 * @param residues
+	 *            residues of the sequence to align to the query
+	 * @return upper bound of the best local alignment score
+	 */
+	public float upperBound(byte[] residues) {
+		float bound = 0;
+		for (int i = 0; i < residues.length && bound < bestAchievable; i++) {
+			bound += bestScores[residues[i] & 0xff];
+		}
+		return Math.min(bound, bestAchievable);
+	}
+
+	/**
+	 * Returns the best positive score of each residue against the query, not
+	 * to be modified
+	 *
+	 * @return best scores indexed by residue
+	 */
+	float[] getBestScores() {
+		return bestScores;
+	}
+
+	/**
+	 * Returns the residues of the query, not to be modified
+	 *
+	 * @return residues of the query
+	 */
+	char[] getQuery() {
+		return query;
+	}
+
+	/**
+	 * Returns the scores by residue and query position, not to be modified
+	 *
+	 * @return scores indexed by residue then by query position
+	 */
+	float[][] getRows() {
+		return rows;
+	}
+
+	/**
+	 * Returns the striped scores by residue, not to be modified
+	 *
+	 * @return striped scores indexed by residue, null without Vector API
+	 */
+	float[][] getStripedRows() {
+		return stripedRows;
+	}
+
+	/**
+	 * Returns the 8-bit striped scores by residue, not to be modified
+	 *
+	 * @return striped scaled scores indexed by residue, or null
+	 */
+	byte[][] getByteRows() {
+		return byteRows;
+	}
+
+	/**
+	 * Returns the 16-bit striped scores by residue, not to be modified
+	 *
+	 * @return striped scaled scores indexed by residue, or null
+	 */
+	short[][] getShortRows() {
+		return shortRows;
+	}
+}
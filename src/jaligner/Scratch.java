@@ -0,0 +1,209 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package jaligner;
+
+/**
+ * Work arrays of the score kernels, kept by each thread and only grown, so
+ * that scoring many pairs does not allocate per pair. The arrays are at least
+ * as long as requested and their contents are left over from the previous
+ * use: the kernels have to initialize the part they use.
+ */
+
+final class Scratch {
+	/**
+	 * Number of arrays of each type
+	 */
+	private static final int SLOTS = 4;
+
+	/**
+	 * Work arrays of the current thread
+	 */
+	private static final ThreadLocal<Scratch> local = ThreadLocal
+			.withInitial(Scratch::new);
+
+	/**
+	 * Residue arrays
+	 */
+	private final char[][] chars = new char[SLOTS][0];
+
+	/**
+	 * Score arrays of the float kernels
+	 */
+	private final float[][] floats = new float[SLOTS][0];
+
+	/**
+	 * Score arrays of the 8-bit kernel
+	 */
+	private final byte[][] bytes = new byte[SLOTS][0];
+
+	/**
+	 * Score arrays of the 16-bit kernel
+	 */
+	private final short[][] shorts = new short[SLOTS][0];
+
+	/**
+	 * Integer arrays
+	 */
+	private final int[][] ints = new int[SLOTS][0];
+
+	/**
+	 * Long arrays
+	 */
+	private final long[][] longs = new long[SLOTS][0];
+
+	/**
+	 * Hidden constructor
+	 */
+	private Scratch() {
+		super();
+	}
+
+	/**
+	 * Returns the work arrays of the current thread
+	 *
+	 * @return work arrays, not to be shared with other threads
+	 */
+	static Scratch get() {
+		return local.get();
+	}
+
+	/**
+	 * Returns the residues of a sequence of bytes as characters
+	 *
+	 * @param slot
+	 *            array number
+	 * @param residues
+	 *            residues
+	 * @return array starting with the residues
+	 */
+	char[] residues(int slot, byte[] residues) {
+		char[] array = chars(slot, residues.length);
+		for (int i = 0; i < residues.length; i++) {
+			array[i] = (char) (residues[i] & 0xff);
+		}
+		return array;
+	}
+
+	/**
+	 * Returns a residue array
+	 *
+	 * @param slot
+	 *            array number
+	 * @param length
+	 *            minimum length
+	 * @return array of at least the length
+	 */
+	char[] chars(int slot, int length) {
+		if (chars[slot].length < length) {
+			chars[slot] = new char[grow(chars[slot].length, length)];
+		}
+		return chars[slot];
+	}
+
+	/**
+	 * Returns a float array
+	 *
+	 * @param slot
+	 *            array number
+	 * @param length
+	 *            minimum length
+	 * @return array of at least the length
+	 */
+	float[] floats(int slot, int length) {
+		if (floats[slot].length < length) {
+			floats[slot] = new float[grow(floats[slot].length, length)];
+		}
+		return floats[slot];
+	}
+
+	/**
+	 * Returns a byte array
+	 *
+	 * @param slot
+	 *            array number
+	 * @param length
+	 *            minimum length
+	 * @return array of at least the length
+	 */
+	byte[] bytes(int slot, int length) {
+		if (bytes[slot].length < length) {
+			bytes[slot] = new byte[grow(bytes[slot].length, length)];
+		}
+		return bytes[slot];
+	}
+
+	/**
+	 * Returns a short array
+	 *
+	 * @param slot
+	 *            array number
+	 * @param length
+	 *            minimum length
+	 * @return array of at least the length
+	 */
+	short[] shorts(int slot, int length) {
+		if (shorts[slot].length < length) {
+			shorts[slot] = new short[grow(shorts[slot].length, length)];
+		}
+		return shorts[slot];
+	}
+
+	/**
+	 * Returns an int array
+	 *
+	 * @param slot
+	 *            array number
+	 * @param length
+	 *            minimum length
+	 * @return array of at least the length
+	 */
+	int[] ints(int slot, int length) {
+		if (ints[slot].length < length) {
+			ints[slot] = new int[grow(ints[slot].length, length)];
+		}
+		return ints[slot];
+	}
+
+	/**
+	 * Returns a long array
+	 *
+	 * @param slot
+	 *            array number
+	 * @param length
+	 *            minimum length
+	 * @return array of at least the length
+	 */
+	long[] longs(int slot, int length) {
+		if (longs[slot].length < length) {
+			longs[slot] = new long[grow(longs[slot].length, length)];
+		}
+		return longs[slot];
+	}
+
+	/**
+	 * Returns the new length of a grown array
+	 *
+	 * @param current
+	 *            current length
+	 * @param length
+	 *            minimum length
+	 * @return new length
+	 */
+	private static int grow(int current, int length) {
+		return Math.max(length, current + (current >> 1));
+	}
+}
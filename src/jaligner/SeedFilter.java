@@ -0,0 +1,325 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package jaligner;
+
+import java.util.Arrays;
+
+/**
+ * BLAST-style two-hit seed and ungapped X-drop extension of a sequence against
+ * a query profile (Altschul et al., 1997). Every word of the query is indexed
+ * with its neighbourhood, the words of the matrix alphabet scoring at least a
+ * threshold against it. Two non-overlapping word hits on the same diagonal
+ * within a window trigger an ungapped extension, which stops when its score
+ * drops too far below the best one.
+ * <p>
+ * An ungapped local alignment is also a gapped one, so the Smith-Waterman
+ * score is never lower than {@link #score(Sequence)}. The filter is built once
+ * per query and never modified afterwards, so it can be shared by any number
+ * of threads.
+ */
+
+public final class SeedFilter {
+	/**
+	 * Default word length
+	 */
+	public static final int DEFAULT_WORD = 3;
+
+	/**
+	 * Default neighbourhood word score threshold
+	 */
+	public static final float DEFAULT_NEIGHBOURHOOD = 11;
+
+	/**
+	 * Default longest distance between two hits on a diagonal
+	 */
+	public static final int DEFAULT_WINDOW = 40;
+
+	/**
+	 * Default drop of the extension score below its best
+	 */
+	public static final float DEFAULT_X_DROP = 16;
+
+	/**
+	 * Query profile
+	 */
+	private final QueryProfile profile;
+
+	/**
+	 * Word length
+	 */
+	private final int word;
+
+	/**
+	 * Longest distance between two hits on a diagonal
+	 */
+	private final int window;
+
+	/**
+	 * Drop of the extension score below its best
+	 */
+	private final float xDrop;
+
+	/**
+	 * Index of the residues in the alphabet of the matrix, -1 for the residues
+	 * that never score
+	 */
+	private final int[] alphabet;
+
+	/**
+	 * Number of residues of the alphabet
+	 */
+	private final int size;
+
+	/**
+	 * Query positions of the neighbourhood of each word, null for none
+	 */
+	private final int[][] hits;
+
+	/**
+	 * Constructor with the default parameters
+	 *
+	 * @param profile
+	 *            query profile
+	 */
+	public SeedFilter(QueryProfile profile) {
+		this(profile, DEFAULT_WORD, DEFAULT_NEIGHBOURHOOD, DEFAULT_WINDOW,
+				DEFAULT_X_DROP);
+	}
+
+	/**
+	 * Constructor
+	 *
+	 * @param profile
+	 *            query profile
+	 * @param word
+	 *            word length
+	 * @param neighbourhood
+	 *            lowest score of a word against a query word to be a hit
+	 * @param window
+	 *            longest distance between two hits on a diagonal
+	 * @param xDrop
+	 *            drop of the extension score below its best
+	 */
+	public SeedFilter(QueryProfile profile, int word, float neighbourhood,
+			int window, float xDrop) {
+		super();
+		this.profile = profile;
+		this.word = word;
+		this.window = window;
+		this.xDrop = xDrop;
+
+		float[][] scores = profile.getMatrix().getScores();
+		alphabet = new int[scores.length];
+		int count = 0;
+		for (int c = 0; c < scores.length; c++) {
+			boolean empty = true;
+			for (int d = 0; d < scores[c].length; d++) {
+				empty &= scores[c][d] == 0;
+			}
+			alphabet[c] = empty ? -1 : count++;
+		}
+		size = count;
+		char[] residues = new char[size];
+		for (int c = 0; c < scores.length; c++) {
+			if (alphabet[c] >= 0) {
+				residues[alphabet[c]] = (char) c;
+			}
+		}
+
+		int words = 1;
+		for (int k = 0; k < word; k++) {
+			words *= size;
+		}
+		float[][] rows = profile.getRows();
+		int[] counts = new int[words];
+		int[][] positions = new int[words][];
+		for (int j = 0; j + word <= profile.length(); j++) {
+			for (int w = 0; w < words; w++) {
+				float score = 0;
+				for (int k = word - 1, rest = w; k >= 0; k--, rest /= size) {
+					score += rows[residues[rest % size]][j + k];
+				}
+				if (score >= neighbourhood) {
+					if (positions[w] == null) {
+						positions[w] = new int[4];
+					} else if (counts[w] == positions[w].length) {
+						positions[w] = Arrays.copyOf(positions[w], counts[w] * 2);
+					}
+					positions[w][counts[w]++] = j;
+				}
+			}
+		}
+		hits = new int[words][];
+		for (int w = 0; w < words; w++) {
+			if (positions[w] != null) {
+				hits[w] = Arrays.copyOf(positions[w], counts[w]);
+			}
+		}
+	}
+
+	/**
+	 * Returns the query profile
+	 *
+	 * @return Returns the profile
+	 */
+	public QueryProfile getProfile() {
+		return profile;
+	}
+
+	/**
+	 * Returns the best score of the ungapped extensions of the two-hit seeds of
+	 * a sequence against the query, or zero if there are no two hits
+	 *
+	 * @param s1
+	 *            sequence #1
+	 * @return best ungapped extension score
+	 */
+	public float score(Sequence s1) {
+		char[] a1 = s1.toArray();
+		return score(a1, a1.length, null);
+	}
+
+	/**
+	 * Returns the best score of the ungapped extensions of the two-hit seeds of
+	 * a sequence of residues given as bytes against the query, see
+	 * {@link #score(Sequence)}
+	 *
+	 * @param s1
+	 *            residues of sequence #1
+	 * @return best ungapped extension score
+	 */
+	public float score(byte[] s1) {
+		return score(Scratch.get().residues(0, s1), s1.length, null);
+	}
+
+	/**
+	 * Returns the diagonal of the best ungapped extension of the two-hit seeds
+	 * of a sequence against the query, to center a band on it, see
+	 * {@link SmithWatermanGotoh#scoreBanded(Sequence, QueryProfile, float, float, int, int)}
+	 *
+	 * @param s1
+	 *            sequence #1
+	 * @return j - i for the residues i of sequence #1 and j of the query
+	 *         aligned by the extension, or 0 if there are no two hits
+	 */
+	public int diagonal(Sequence s1) {
+		char[] a1 = s1.toArray();
+		int[] diagonal = new int[1];
+		score(a1, a1.length, diagonal);
+		return diagonal[0];
+	}
+
+	/**
+	 * Returns the diagonal of the best ungapped extension of the two-hit seeds
+	 * of a sequence of residues given as bytes against the query, see
+	 * {@link #diagonal(Sequence)}
+	 *
+	 * @param s1
+	 *            residues of sequence #1
+	 * @return diagonal of the best extension, or 0 if there are no two hits
+	 */
+	public int diagonal(byte[] s1) {
+		int[] diagonal = new int[1];
+		score(Scratch.get().residues(0, s1), s1.length, diagonal);
+		return diagonal[0];
+	}
+
+	/**
+	 * Two-hit seed and extension
+	 *
+	 * @param a1
+	 *            sequence #1
+	 * @param length1
+	 *            number of residues of sequence #1
+	 * @param diagonal
+	 *            if not null, set to the diagonal of the best extension
+	 * @return best ungapped extension score
+	 */
+	private float score(char[] a1, int length1, int[] diagonal) {
+		int n = profile.length();
+		if (length1 < word || n < word) {
+			return 0;
+		}
+		float[][] rows = profile.getRows();
+
+		// Last hit, or end of the last extension, on each diagonal i - j + n
+		int[] last = Scratch.get().ints(0, length1 + n);
+		Arrays.fill(last, 0, length1 + n, Integer.MIN_VALUE / 2);
+
+		int modulus = hits.length;
+		float best = 0;
+		int w = 0;
+		int valid = 0; // residues of the current word in the alphabet
+		for (int i = 0; i < length1; i++) {
+			int c = a1[i] < alphabet.length ? alphabet[a1[i]] : -1;
+			if (c < 0) {
+				valid = 0;
+				w = 0;
+				continue;
+			}
+			w = (w * size + c) % modulus;
+			if (++valid < word || hits[w] == null) {
+				continue;
+			}
+			int start = i - word + 1; // word start in a1
+			for (int j : hits[w]) {
+				int d = start - j + n;
+				int distance = start - last[d];
+				if (distance < word) {
+					// Overlaps the previous hit or is inside an extension
+					continue;
+				}
+				if (distance > window) {
+					last[d] = start;
+					continue;
+				}
+
+				// Ungapped X-drop extension, to the right from the word start
+				// then to the left of it
+				float score = 0, right = 0;
+				int end = start;
+				for (int x = start, y = j; x < length1 && y < n; x++, y++) {
+					score += rows[a1[x]][y];
+					if (score > right) {
+						right = score;
+						end = x;
+					} else if (right - score > xDrop) {
+						break;
+					}
+				}
+				score = 0;
+				float left = 0;
+				for (int x = start - 1, y = j - 1; x >= 0 && y >= 0; x--, y--) {
+					score += rows[a1[x]][y];
+					if (score > left) {
+						left = score;
+					} else if (left - score > xDrop) {
+						break;
+					}
+				}
+				if (left + right > best) {
+					best = left + right;
+					if (diagonal != null) {
+						diagonal[0] = j - start;
+					}
+				}
+				last[d] = end;
+			}
+		}
+		return best;
+	}
+}
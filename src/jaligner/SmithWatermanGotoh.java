@@ -18,8 +18,14 @@
 
 package jaligner;
 
+import jaligner.matrix.EncodedMatrix;
 import jaligner.matrix.Matrix;
 
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 /**
  * An implementation of the Smith-Waterman algorithm with Gotoh's improvement
  * for biological local pairwise sequence alignment.
@@ -27,70 +33,859 @@ import jaligner.matrix.Matrix;
  * @author Ahmed Moustafa (ahmed@users.sf.net)
  */
 
-public class SmithWatermanGotoh {
-	/**
-	 * Hidden constructor
-	 */
-	private SmithWatermanGotoh() {
-		super();
-	}
+public class SmithWatermanGotoh {
+	/**
+	 * Logger
+	 */
+	private static final Logger logger = Logger
+			.getLogger(SmithWatermanGotoh.class.getName());
+
+	/**
+	 * Scalar score engine, one cell at a time
+	 */
+	public static final int SCALAR = 0;
+
+	/**
+	 * Striped SIMD score engine, needs the <code>jdk.incubator.vector</code>
+	 * module (<code>--add-modules jdk.incubator.vector</code>)
+	 */
+	public static final int STRIPED = 1;
+
+	/**
+	 * Striped SIMD score engine on 8-bit integer lanes, promoted to 16-bit
+	 * then to float lanes when a score does not fit. Used for query profiles,
+	 * the other score methods use the {@link #STRIPED} engine. Needs the
+	 * <code>jdk.incubator.vector</code> module.
+	 */
+	public static final int INTEGER = 2;
+
+	/**
+	 * Inter-sequence SIMD score engine, aligning a query profile against as
+	 * many targets as there are vector lanes at once. Used by
+	 * {@link #score(QueryProfile, List, float, float)}, the other score
+	 * methods use the {@link #INTEGER} engine. Needs the
+	 * <code>jdk.incubator.vector</code> module.
+	 */
+	public static final int INTER_SEQUENCE = 3;
+
+	/**
+	 * System property to select the score engine: "scalar", "striped",
+	 * "integer" or "inter"
+	 */
+	public static final String ENGINE_PROPERTY = "jaligner.engine";
+
+	/**
+	 * True if the Vector API can be used
+	 */
+	private static final boolean vectorSupported = ModuleLayer.boot()
+			.findModule("jdk.incubator.vector").isPresent();
+
+	/**
+	 * Current score engine
+	 */
+	private static volatile int engine = SCALAR;
+	static {
+		try {
+			String name = System.getProperty(ENGINE_PROPERTY);
+			if ("striped".equalsIgnoreCase(name)) {
+				setEngine(STRIPED);
+			} else if ("integer".equalsIgnoreCase(name)) {
+				setEngine(INTEGER);
+			} else if ("inter".equalsIgnoreCase(name)) {
+				setEngine(INTER_SEQUENCE);
+			}
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Failed getting score engine property: "
+					+ e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Default number of diagonals on each side of the center of a band, see
+	 * {@link #scoreBanded(Sequence, QueryProfile, float, float, int, int)}
+	 */
+	public static final int DEFAULT_BAND_WIDTH = 32;
+
+	/**
+	 * Default number of cells of the dynamic programming matrix above which
+	 * {@link #align(Sequence, Sequence, Matrix, float, float)} constructs the
+	 * matrix in parallel
+	 */
+	public static final long DEFAULT_WAVEFRONT_THRESHOLD = 4000000;
+
+	/**
+	 * System property to set the number of cells above which the alignments
+	 * are constructed in parallel
+	 */
+	public static final String WAVEFRONT_PROPERTY = "jaligner.wavefront";
+
+	/**
+	 * Number of cells above which the alignments are constructed in parallel
+	 */
+	private static volatile long wavefrontThreshold = DEFAULT_WAVEFRONT_THRESHOLD;
+	static {
+		try {
+			String cells = System.getProperty(WAVEFRONT_PROPERTY);
+			if (cells != null) {
+				setWavefrontThreshold(Long.parseLong(cells.trim()));
+			}
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Failed getting wavefront property: "
+					+ e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Mask of the traceback direction in a packed traceback cell
+	 */
+	private static final int DIRECTION_MASK = 0x3;
+
+	/**
+	 * Packed traceback flag: the vertical gap ending at the cell extends the
+	 * vertical gap of the cell above
+	 */
+	private static final int EXTENDED_VERTICAL_GAP = 0x4;
+
+	/**
+	 * Packed traceback flag: the horizontal gap ending at the cell extends the
+	 * horizontal gap of the cell on the left
+	 */
+	private static final int EXTENDED_HORIZONTAL_GAP = 0x8;
+
+	/**
+	 * Hidden constructor
+	 */
+	private SmithWatermanGotoh() {
+		super();
+	}
+
+
+	/**
+	 * Aligns two sequences by Smith-Waterman algorithm. Above
+	 * {@link #getWavefrontThreshold()} cells the dynamic programming matrix is
+	 * cut into tiles computed in parallel along its anti-diagonals, on the
+	 * common {@link ForkJoinPool}, which gives the same alignment.
+	 * 
+	 * @param s1
+	 *            sequene #1 ({@link Sequence})
+	 * @param s2
+	 *            sequene #2 ({@link Sequence})
+	 * @param matrix
+	 *            scoring matrix ({@link Matrix})
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @return alignment object contains the two aligned sequences, the
+	 *         alignment score and alignment statistics
+	 * @see Sequence
+	 * @see Matrix
+	 */
+	public static Alignment align(Sequence s1, Sequence s2, Matrix matrix,
+			float o, float e) {
+		float[][] scores = matrix.getScores();
+
+		SmithWatermanGotoh sw = new SmithWatermanGotoh();
+
+		int m = s1.length() + 1;
+		int n = s2.length() + 1;
+
+		byte[] pointers = new byte[m * n];
+
+		// Initializes the boundaries of the traceback matrix to STOP.
+		for (int i = 0, k = 0; i < m; i++, k += n) {
+			pointers[k] = Directions.STOP;
+		}
+		for (int j = 1; j < n; j++) {
+			pointers[j] = Directions.STOP;
+		}
+
+		short[] sizesOfVerticalGaps = new short[m * n];
+		short[] sizesOfHorizontalGaps = new short[m * n];
+		for (int i = 0, k = 0; i < m; i++, k += n) {
+			for (int j = 0; j < n; j++) {
+				sizesOfVerticalGaps[k + j] = sizesOfHorizontalGaps[k + j] = 1;
+			}
+		}
+
+		Cell cell;
+		if ((long) (m - 1) * (n - 1) > wavefrontThreshold) {
+			cell = WavefrontSmithWaterman.construct(s1.toArray(), s2.toArray(),
+					scores, o, e, pointers, sizesOfVerticalGaps,
+					sizesOfHorizontalGaps, ForkJoinPool.commonPool());
+		} else {
+			cell = sw.construct(s1, s2, scores, o, e, pointers,
+					sizesOfVerticalGaps, sizesOfHorizontalGaps);
+		}
+		Alignment alignment = sw.traceback(s1, s2, matrix, pointers, cell,
+				sizesOfVerticalGaps, sizesOfHorizontalGaps);
+		alignment.setName1(s1.getId());
+		alignment.setName2(s2.getId());
+		alignment.setMatrix(matrix);
+		alignment.setOpen(o);
+		alignment.setExtend(e);
+		return alignment;
+	}
+
+	/**
+	 * Aligns two sequences by Smith-Waterman algorithm using a packed traceback
+	 * matrix. Each cell of the traceback takes 4 bits (the 2-bit direction and
+	 * one extension flag per gap type) instead of the byte pointer and the two
+	 * <code>short</code> gap sizes used by
+	 * {@link #align(Sequence, Sequence, Matrix, float, float)}, which cuts the
+	 * memory of an alignment by a factor of ten and has no limit on the length
+	 * of a gap. The returned alignment is identical to the one returned by
+	 * {@link #align(Sequence, Sequence, Matrix, float, float)}.
+	 * 
+	 * @param s1
+	 *            sequene #1 ({@link Sequence})
+	 * @param s2
+	 *            sequene #2 ({@link Sequence})
+	 * @param matrix
+	 *            scoring matrix ({@link Matrix})
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @return alignment object contains the two aligned sequences, the
+	 *         alignment score and alignment statistics
+	 * @see Sequence
+	 * @see Matrix
+	 */
+	public static Alignment alignCompact(Sequence s1, Sequence s2,
+			Matrix matrix, float o, float e) {
+		float[][] scores = matrix.getScores();
+
+		SmithWatermanGotoh sw = new SmithWatermanGotoh();
+
+		int m = s1.length() + 1;
+		int n = s2.length() + 1;
+
+		// Two cells per byte, the boundaries are STOP (zero) already.
+		byte[] cells = new byte[(m * n + 1) / 2];
+
+		Cell cell = sw.constructCompact(s1, s2, scores, o, e, cells);
+		Alignment alignment = sw.tracebackCompact(s1, s2, matrix, cells, cell);
+		alignment.setName1(s1.getId());
+		alignment.setName2(s2.getId());
+		alignment.setMatrix(matrix);
+		alignment.setOpen(o);
+		alignment.setExtend(e);
+		return alignment;
+	}
+
+	/**
+	 * Sets the engine used by the score methods. The SIMD engines fall back
+	 * to the scalar one if the Vector API is not available.
+	 * 
+	 * @param engine
+	 *            {@link #SCALAR}, {@link #STRIPED}, {@link #INTEGER} or
+	 *            {@link #INTER_SEQUENCE}
+	 */
+	public static void setEngine(int engine) {
+		if (engine != SCALAR && !vectorSupported) {
+			logger.log(Level.WARNING, "Module jdk.incubator.vector not found, "
+					+ "using the scalar engine");
+			engine = SCALAR;
+		}
+		SmithWatermanGotoh.engine = engine;
+	}
+
+	/**
+	 * Returns the engine used by the score methods
+	 * 
+	 * @return {@link #SCALAR}, {@link #STRIPED}, {@link #INTEGER} or
+	 *         {@link #INTER_SEQUENCE}
+	 */
+	public static int getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Sets the number of cells of the dynamic programming matrix above which
+	 * {@link #align(Sequence, Sequence, Matrix, float, float)} constructs the
+	 * matrix in parallel
+	 * 
+	 * @param cells
+	 *            number of cells, {@link Long#MAX_VALUE} to never construct in
+	 *            parallel
+	 */
+	public static void setWavefrontThreshold(long cells) {
+		wavefrontThreshold = cells;
+	}
+
+	/**
+	 * Returns the number of cells above which the alignments are constructed
+	 * in parallel
+	 * 
+	 * @return number of cells
+	 */
+	public static long getWavefrontThreshold() {
+		return wavefrontThreshold;
+	}
+
+	/**
+	 * Returns true if the Vector API based engines can be used
+	 * 
+	 * @return true if the <code>jdk.incubator.vector</code> module is loaded
+	 */
+	public static boolean isVectorSupported() {
+		return vectorSupported;
+	}
+
+	/**
+	 * Computes the Smith-Waterman score of two sequences without building the
+	 * alignment. Only two rows of the dynamic programming matrix are kept, so
+	 * no traceback matrices are allocated. The returned score is the same as
+	 * the one of {@link Alignment#calculateScore()} for the alignment returned
+	 * by {@link #align(Sequence, Sequence, Matrix, float, float)}, whichever
+	 * engine is selected.
+	 * 
+	 * @param s1
+	 *            sequene #1 ({@link Sequence})
+	 * @param s2
+	 *            sequene #2 ({@link Sequence})
+	 * @param matrix
+	 *            scoring matrix ({@link Matrix})
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @return the best local alignment score
+	 * @see Sequence
+	 * @see Matrix
+	 */
+	public static float score(Sequence s1, Sequence s2, Matrix matrix,
+			float o, float e) {
+		char[] a1 = s1.toArray();
+		char[] a2 = s2.toArray();
+		return score(a1, a1.length, a2, a2.length, matrix, o, e);
+	}
+
+	/**
+	 * Computes the Smith-Waterman score of two sequences of residues given as
+	 * bytes, such as ASCII strings, without copying them into
+	 * {@link Sequence}s. The result is the same as the one of
+	 * {@link #score(Sequence, Sequence, Matrix, float, float)}. The residues
+	 * can also be codes of an {@link EncodedMatrix}, the scalar engine then
+	 * reads them and the dense scores of the matrix directly.
+	 * 
+	 * @param s1
+	 *            residues of sequence #1
+	 * @param s2
+	 *            residues of sequence #2
+	 * @param matrix
+	 *            scoring matrix ({@link Matrix})
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @return the best local alignment score
+	 */
+	public static float score(byte[] s1, byte[] s2, Matrix matrix, float o,
+			float e) {
+		if (engine == SCALAR && matrix instanceof EncodedMatrix) {
+			return score(s1, s2, matrix.getScores(), o, e);
+		}
+		Scratch scratch = Scratch.get();
+		return score(scratch.residues(0, s1), s1.length,
+				scratch.residues(1, s2), s2.length, matrix, o, e);
+	}
+
+	/**
+	 * Computes the Smith-Waterman score of a sequence against a query profile.
+	 * The result is the same as the one of
+	 * {@link #score(Sequence, Sequence, Matrix, float, float)} with the query
+	 * as sequence #2 and the matrix of the profile, but the scores are read
+	 * from the profile instead of the scoring matrix.
+	 * 
+	 * @param s1
+	 *            sequene #1 ({@link Sequence})
+	 * @param profile
+	 *            profile of sequence #2 ({@link QueryProfile})
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @return the best local alignment score
+	 * @see QueryProfile
+	 */
+	public static float score(Sequence s1, QueryProfile profile, float o,
+			float e) {
+		char[] a1 = s1.toArray();
+		return score(a1, a1.length, profile, o, e, Float.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Computes the Smith-Waterman score of a sequence of residues given as
+	 * bytes against a query profile. The result is the same as the one of
+	 * {@link #score(Sequence, QueryProfile, float, float)}.
+	 * 
+	 * @param s1
+	 *            residues of sequence #1
+	 * @param profile
+	 *            profile of sequence #2 ({@link QueryProfile})
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @return the best local alignment score
+	 */
+	public static float score(byte[] s1, QueryProfile profile, float o, float e) {
+		return score(Scratch.get().residues(0, s1), s1.length, profile, o, e,
+				Float.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Computes the Smith-Waterman scores of a query profile against many
+	 * sequences of residues given as bytes. The work arrays of the kernels
+	 * belong to the calling thread and are reused from one target to the
+	 * next, so the only allocation is the returned array. With the
+	 * {@link #INTER_SEQUENCE} engine the targets are aligned several at once.
+	 * 
+	 * @param profile
+	 *            profile of sequence #2 ({@link QueryProfile})
+	 * @param targets
+	 *            residues of the sequences #1
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @return the best local alignment score of each target
+	 * @see #score(byte[], QueryProfile, float, float)
+	 */
+	public static float[] score(QueryProfile profile, List<byte[]> targets,
+			float o, float e) {
+		float[] scores = new float[targets.size()];
+		if (engine == INTER_SEQUENCE) {
+			InterSequenceSmithWaterman.score(profile, targets, o, e, scores);
+			return scores;
+		}
+		Scratch scratch = Scratch.get();
+		int i = 0;
+		for (byte[] target : targets) {
+			scores[i++] = score(scratch.residues(0, target), target.length,
+					profile, o, e, Float.POSITIVE_INFINITY);
+		}
+		return scores;
+	}
+
+	/**
+	 * Decides whether the Smith-Waterman score of a sequence against a query
+	 * profile reaches a target, with the same semantics as comparing the
+	 * result of {@link #score(Sequence, QueryProfile, float, float)} to the
+	 * target. The kernels stop as soon as a cell reaches the target, or as
+	 * soon as the best score of a row plus the best scores of the remaining
+	 * residues of sequence #1 against the query can not reach it any more.
+	 * 
+	 * @param s1
+	 *            sequene #1 ({@link Sequence})
+	 * @param profile
+	 *            profile of sequence #2 ({@link QueryProfile})
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param target
+	 *            score to reach
+	 * @return true if the best local alignment score is at least the target
+	 * @see QueryProfile#upperBound(Sequence)
+	 */
+	public static boolean reaches(Sequence s1, QueryProfile profile, float o,
+			float e, float target) {
+		char[] a1 = s1.toArray();
+		return score(a1, a1.length, profile, o, e, target) >= target;
+	}
+
+	/**
+	 * Decides whether the Smith-Waterman score of a sequence of residues given
+	 * as bytes against a query profile reaches a target, see
+	 * {@link #reaches(Sequence, QueryProfile, float, float, float)}
+	 * 
+	 * @param s1
+	 *            residues of sequence #1
+	 * @param profile
+	 *            profile of sequence #2 ({@link QueryProfile})
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param target
+	 *            score to reach
+	 * @return true if the best local alignment score is at least the target
+	 */
+	public static boolean reaches(byte[] s1, QueryProfile profile, float o,
+			float e, float target) {
+		return score(Scratch.get().residues(0, s1), s1.length, profile, o, e,
+				target) >= target;
+	}
+
+	/**
+	 * Computes the Smith-Waterman score of a sequence against a query profile
+	 * in a band of diagonals only, O(length * width) cells instead of the
+	 * whole matrix. The band is centered on a diagonal, for example
+	 * <code>0</code> for sequences of similar lengths or the diagonal of a
+	 * seed given by {@link SeedFilter#diagonal(Sequence)}. When the best path
+	 * found in the band goes through its edge, a better path may leave the
+	 * band, and the whole matrix is computed instead. An alignment lying
+	 * entirely outside of the band is not seen.
+	 * 
+	 * @param s1
+	 *            sequene #1 ({@link Sequence})
+	 * @param profile
+	 *            profile of sequence #2 ({@link QueryProfile})
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param diagonal
+	 *            center of the band, j - i for the residues i of sequence #1
+	 *            and j of sequence #2
+	 * @param width
+	 *            number of diagonals on each side of the center
+	 * @return the best local alignment score of the paths in the band, or of
+	 *         all the paths if the best one reaches the edge of the band
+	 */
+	public static float scoreBanded(Sequence s1, QueryProfile profile,
+			float o, float e, int diagonal, int width) {
+		char[] a1 = s1.toArray();
+		return scoreBanded(a1, a1.length, profile, o, e, diagonal, width);
+	}
+
+	/**
+	 * Computes the Smith-Waterman score of a sequence of residues given as
+	 * bytes against a query profile in a band of diagonals, see
+	 * {@link #scoreBanded(Sequence, QueryProfile, float, float, int, int)}
+	 * 
+	 * @param s1
+	 *            residues of sequence #1
+	 * @param profile
+	 *            profile of sequence #2 ({@link QueryProfile})
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param diagonal
+	 *            center of the band
+	 * @param width
+	 *            number of diagonals on each side of the center
+	 * @return the best local alignment score of the paths in the band, or of
+	 *         all the paths if the best one reaches the edge of the band
+	 */
+	public static float scoreBanded(byte[] s1, QueryProfile profile, float o,
+			float e, int diagonal, int width) {
+		return scoreBanded(Scratch.get().residues(0, s1), s1.length, profile,
+				o, e, diagonal, width);
+	}
+
+	/**
+	 * Scores an array of residues in a band, and in the whole matrix when the
+	 * best path reaches the edge of the band
+	 * 
+	 * @param a1
+	 *            sequence #1
+	 * @param length1
+	 *            number of residues of sequence #1
+	 * @param profile
+	 *            query profile of sequence #2
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param diagonal
+	 *            center of the band
+	 * @param width
+	 *            number of diagonals on each side of the center
+	 * @return the best local alignment score
+	 */
+	private static float scoreBanded(char[] a1, int length1,
+			QueryProfile profile, float o, float e, int diagonal, int width) {
+		float score = BandedSmithWaterman.score(a1, length1, profile, o, e,
+				diagonal - width, diagonal + width);
+		if (Float.isNaN(score)) {
+			score = score(a1, length1, profile, o, e, Float.POSITIVE_INFINITY);
+		}
+		return score;
+	}
+
+	/**
+	 * Scores two arrays of residues with the selected engine
+	 * 
+	 * @param a1
+	 *            sequence #1
+	 * @param length1
+	 *            number of residues of sequence #1
+	 * @param a2
+	 *            sequence #2
+	 * @param length2
+	 *            number of residues of sequence #2
+	 * @param matrix
+	 *            scoring matrix
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @return the best local alignment score
+	 */
+	private static float score(char[] a1, int length1, char[] a2,
+			int length2, Matrix matrix, float o, float e) {
+		if (engine != SCALAR) {
+			return StripedSmithWaterman.score(a1, length1, a2, length2,
+					matrix.getScores(), o, e);
+		}
+		return score(a1, length1, a2, length2, matrix.getScores(), o, e);
+	}
+
+	/**
+	 * Scores an array of residues against a query profile with the selected
+	 * engine
+	 * 
+	 * @param a1
+	 *            sequence #1
+	 * @param length1
+	 *            number of residues of sequence #1
+	 * @param profile
+	 *            profile of sequence #2
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param target
+	 *            score at which to stop, or positive infinity to compute the
+	 *            whole matrix
+	 * @return the best local alignment score, or when stopped early a score
+	 *         on the same side of the target as the best one
+	 */
+	private static float score(char[] a1, int length1, QueryProfile profile,
+			float o, float e, float target) {
+		if (engine == INTEGER || engine == INTER_SEQUENCE) {
+			return IntegerSmithWaterman.score(a1, length1, profile, o, e,
+					target);
+		}
+		if (engine == STRIPED) {
+			return StripedSmithWaterman.score(a1, length1, profile, o, e,
+					target);
+		}
+		return score(a1, length1, profile.getRows(), profile.length(), o, e,
+				target == Float.POSITIVE_INFINITY ? null : profile
+						.getBestScores(), target);
+	}
+
+	/**
+	 * Computes the best local alignment score of two arrays of residues
+	 * 
+	 * @param a1
+	 *            sequence #1
+	 * @param length1
+	 *            number of residues of sequence #1
+	 * @param a2
+	 *            sequence #2
+	 * @param length2
+	 *            number of residues of sequence #2
+	 * @param matrix
+	 *            scoring matrix
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @return the best local alignment score
+	 */
+	private static float score(char[] a1, int length1, char[] a2,
+			int length2, float[][] matrix, float o, float e) {
+		int m = length1 + 1;
+		int n = length2 + 1;
+
+		Scratch scratch = Scratch.get();
+		float f; // score of alignment x1...xi to y1...yi if xi aligns to yi
+		float[] g = scratch.floats(0, n); // score if xi aligns to a gap after yi
+		float h; // score if yi aligns to a gap after xi
+		float[] v = scratch.floats(1, n); // best score of alignment x1...xi to y1...yi
+		float vDiagonal;
+
+		for (int j = 0; j < n; j++) {
+			g[j] = Float.NEGATIVE_INFINITY;
+			v[j] = 0;
+		}
+
+		float g1, g2, h1, h2;
+		float best = 0;
+
+		for (int i = 1; i < m; i++) {
+			float[] row = matrix[a1[i - 1]];
+			h = Float.NEGATIVE_INFINITY;
+			vDiagonal = v[0];
+			for (int j = 1; j < n; j++) {
+				f = vDiagonal + row[a2[j - 1]];
+
+				g1 = g[j] - e;
+				g2 = v[j] - o;
+				g[j] = g1 > g2 ? g1 : g2;
+
+				h1 = h - e;
+				h2 = v[j - 1] - o;
+				h = h1 > h2 ? h1 : h2;
+
+				vDiagonal = v[j];
+				v[j] = maximum(f, g[j], h, 0);
+
+				if (v[j] > best) {
+					best = v[j];
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Computes the best local alignment score of two arrays of residue codes
+	 * 
+	 * @param s1
+	 *            codes of sequence #1
+	 * @param s2
+	 *            codes of sequence #2
+	 * @param matrix
+	 *            dense scores indexed by code
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @return the best local alignment score
+	 */
+	private static float score(byte[] s1, byte[] s2, float[][] matrix,
+			float o, float e) {
+		int m = s1.length + 1;
+		int n = s2.length + 1;
+
+		Scratch scratch = Scratch.get();
+		float f; // score of alignment x1...xi to y1...yi if xi aligns to yi
+		float[] g = scratch.floats(0, n); // score if xi aligns to a gap after yi
+		float h; // score if yi aligns to a gap after xi
+		float[] v = scratch.floats(1, n); // best score of alignment x1...xi to y1...yi
+		float vDiagonal;
+
+		for (int j = 0; j < n; j++) {
+			g[j] = Float.NEGATIVE_INFINITY;
+			v[j] = 0;
+		}
+
+		float g1, g2, h1, h2;
+		float best = 0;
+
+		for (int i = 1; i < m; i++) {
+			float[] row = matrix[s1[i - 1]];
+			h = Float.NEGATIVE_INFINITY;
+			vDiagonal = v[0];
+			for (int j = 1; j < n; j++) {
+				f = vDiagonal + row[s2[j - 1]];
+
+				g1 = g[j] - e;
+				g2 = v[j] - o;
+				g[j] = g1 > g2 ? g1 : g2;
+
+				h1 = h - e;
+				h2 = v[j - 1] - o;
+				h = h1 > h2 ? h1 : h2;
+
+				vDiagonal = v[j];
+				v[j] = maximum(f, g[j], h, 0);
 
+				if (v[j] > best) {
+					best = v[j];
+				}
+			}
+		}
+		return best;
+	}
 
 	/**
-	 * Aligns two sequences by Smith-Waterman algorithm
+	 * Computes the best local alignment score of an array of residues against
+	 * a query profile
 	 * 
-	 * @param s1
-	 *            sequene #1 ({@link Sequence})
-	 * @param s2
-	 *            sequene #2 ({@link Sequence})
-	 * @param matrix
-	 *            scoring matrix ({@link Matrix})
+	 * @param a1
+	 *            sequence #1
+	 * @param length1
+	 *            number of residues of sequence #1
+	 * @param rows
+	 *            scores of sequence #2 indexed by residue then by position
+	 * @param length2
+	 *            length of sequence #2
 	 * @param o
 	 *            open gap penalty
 	 * @param e
 	 *            extend gap penalty
-	 * @return alignment object contains the two aligned sequences, the
-	 *         alignment score and alignment statistics
-	 * @see Sequence
-	 * @see Matrix
+	 * @param best
+	 *            best score of each residue against sequence #2, or null to
+	 *            compute the whole matrix
+	 * @param target
+	 *            score at which to stop, when best is not null
+	 * @return the best local alignment score, or when stopped early a score
+	 *         on the same side of the target as the best one
 	 */
-	public static Alignment align(Sequence s1, Sequence s2, Matrix matrix,
-			float o, float e) {
-		float[][] scores = matrix.getScores();
+	private static float score(char[] a1, int length1, float[][] rows,
+			int length2, float o, float e, float[] best, float target) {
+		int m = length1 + 1;
+		int n = length2 + 1;
 
-		SmithWatermanGotoh sw = new SmithWatermanGotoh();
+		Scratch scratch = Scratch.get();
+		float f; // score of alignment x1...xi to y1...yi if xi aligns to yi
+		float[] g = scratch.floats(0, n); // score if xi aligns to a gap after yi
+		float h; // score if yi aligns to a gap after xi
+		float[] v = scratch.floats(1, n); // best score of alignment x1...xi to y1...yi
+		float vDiagonal;
 
-		int m = s1.length() + 1;
-		int n = s2.length() + 1;
+		for (int j = 0; j < n; j++) {
+			g[j] = Float.NEGATIVE_INFINITY;
+			v[j] = 0;
+		}
 
-		byte[] pointers = new byte[m * n];
+		float g1, g2, h1, h2;
+		float max = 0;
+		float rowMax;
 
-		// Initializes the boundaries of the traceback matrix to STOP.
-		for (int i = 0, k = 0; i < m; i++, k += n) {
-			pointers[k] = Directions.STOP;
-		}
-		for (int j = 1; j < n; j++) {
-			pointers[j] = Directions.STOP;
+		// Best scores the rows left to compute can add
+		float remaining = 0;
+		if (best != null) {
+			for (int i = 0; i < length1; i++) {
+				remaining += best[a1[i]];
+			}
 		}
 
-		short[] sizesOfVerticalGaps = new short[m * n];
-		short[] sizesOfHorizontalGaps = new short[m * n];
-		for (int i = 0, k = 0; i < m; i++, k += n) {
-			for (int j = 0; j < n; j++) {
-				sizesOfVerticalGaps[k + j] = sizesOfHorizontalGaps[k + j] = 1;
+		for (int i = 1; i < m; i++) {
+			float[] row = rows[a1[i - 1]];
+			h = Float.NEGATIVE_INFINITY;
+			vDiagonal = v[0];
+			rowMax = 0;
+			for (int j = 1; j < n; j++) {
+				f = vDiagonal + row[j - 1];
+
+				g1 = g[j] - e;
+				g2 = v[j] - o;
+				g[j] = g1 > g2 ? g1 : g2;
+
+				h1 = h - e;
+				h2 = v[j - 1] - o;
+				h = h1 > h2 ? h1 : h2;
+
+				vDiagonal = v[j];
+				v[j] = maximum(f, g[j], h, 0);
+
+				if (v[j] > rowMax) {
+					rowMax = v[j];
+				}
+			}
+			if (rowMax > max) {
+				max = rowMax;
+			}
+			if (best != null) {
+				// Every cell of the next rows extends a cell of this row or
+				// starts after it
+				remaining -= best[a1[i - 1]];
+				if (max >= target || rowMax + remaining < target) {
+					break;
+				}
 			}
 		}
-
-		Cell cell = sw.construct(s1, s2, scores, o, e, pointers,
-				sizesOfVerticalGaps, sizesOfHorizontalGaps);
-		Alignment alignment = sw.traceback(s1, s2, matrix, pointers, cell,
-				sizesOfVerticalGaps, sizesOfHorizontalGaps);
-		alignment.setName1(s1.getId());
-		alignment.setName2(s2.getId());
-		alignment.setMatrix(matrix);
-		alignment.setOpen(o);
-		alignment.setExtend(e);
-		return alignment;
+		return max;
 	}
 
 	/**
@@ -294,6 +1089,234 @@ public class SmithWatermanGotoh {
 		return alignment;
 	}
 
+	/**
+	 * Constructs the packed traceback matrix, see
+	 * {@link #alignCompact(Sequence, Sequence, Matrix, float, float)}
+	 * 
+	 * @param s1
+	 *            sequence #1
+	 * @param s2
+	 *            sequence #2
+	 * @param matrix
+	 *            scoring matrix
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param cells
+	 *            packed traceback matrix, two cells per byte
+	 * @return The cell where the traceback starts.
+	 */
+	private Cell constructCompact(Sequence s1, Sequence s2, float[][] matrix,
+			float o, float e, byte[] cells) {
+		char[] a1 = s1.toArray();
+		char[] a2 = s2.toArray();
+
+		int m = s1.length() + 1;
+		int n = s2.length() + 1;
+
+		float f; // score of alignment x1...xi to y1...yi if xi aligns to yi
+		float[] g = new float[n]; // score if xi aligns to a gap after yi
+		float h; // score if yi aligns to a gap after xi
+		float[] v = new float[n]; // best score of alignment x1...xi to y1...yi
+		float vDiagonal;
+
+		for (int j = 0; j < n; j++) {
+			g[j] = Float.NEGATIVE_INFINITY;
+			v[j] = 0;
+		}
+
+		float similarityScore, g1, g2, h1, h2;
+		int code;
+
+		Cell cell = new Cell();
+
+		for (int i = 1, k = n; i < m; i++, k += n) {
+			h = Float.NEGATIVE_INFINITY;
+			vDiagonal = v[0];
+			for (int j = 1, l = k + 1; j < n; j++, l++) {
+				similarityScore = matrix[a1[i - 1]][a2[j - 1]];
+
+				// Fill the matrices
+				f = vDiagonal + similarityScore;
+
+				code = 0;
+
+				g1 = g[j] - e;
+				g2 = v[j] - o;
+				if (g1 > g2) {
+					g[j] = g1;
+					code |= EXTENDED_VERTICAL_GAP;
+				} else {
+					g[j] = g2;
+				}
+
+				h1 = h - e;
+				h2 = v[j - 1] - o;
+				if (h1 > h2) {
+					h = h1;
+					code |= EXTENDED_HORIZONTAL_GAP;
+				} else {
+					h = h2;
+				}
+
+				vDiagonal = v[j];
+				v[j] = maximum(f, g[j], h, 0);
+
+				// Determine the traceback direction
+				if (v[j] == 0) {
+					code |= Directions.STOP;
+				} else if (v[j] == f) {
+					code |= Directions.DIAGONAL;
+				} else if (v[j] == g[j]) {
+					code |= Directions.UP;
+				} else {
+					code |= Directions.LEFT;
+				}
+				cells[l >> 1] |= (byte) (code << ((l & 1) << 2));
+
+				// Set the traceback start at the current cell i, j and score
+				if (v[j] > cell.getScore()) {
+					cell.set(i, j, v[j]);
+				}
+			}
+		}
+		return cell;
+	}
+
+	/**
+	 * Returns the alignment of two sequences based on the packed traceback
+	 * matrix
+	 * 
+	 * @param s1
+	 *            sequence #1
+	 * @param s2
+	 *            sequence #2
+	 * @param m
+	 *            scoring matrix
+	 * @param cells
+	 *            packed traceback matrix, two cells per byte
+	 * @param cell
+	 *            The cell where the traceback starts.
+	 * @return {@link Alignment}with the two aligned sequences and alignment
+	 *         score.
+	 * @see Cell
+	 * @see Alignment
+	 */
+	private Alignment tracebackCompact(Sequence s1, Sequence s2, Matrix m,
+			byte[] cells, Cell cell) {
+		char[] a1 = s1.toArray();
+		char[] a2 = s2.toArray();
+
+		float[][] scores = m.getScores();
+
+		int n = s2.length() + 1;
+
+		Alignment alignment = new Alignment();
+		alignment.setScore(cell.getScore());
+
+		int maxlen = s1.length() + s2.length(); // maximum length after the
+												// aligned sequences
+
+		char[] reversed1 = new char[maxlen]; // reversed sequence #1
+		char[] reversed2 = new char[maxlen]; // reversed sequence #2
+		char[] reversed3 = new char[maxlen]; // reversed markup
+
+		int len1 = 0; // length of sequence #1 after alignment
+		int len2 = 0; // length of sequence #2 after alignment
+		int len3 = 0; // length of the markup line
+
+		int identity = 0; // count of identitcal pairs
+		int similarity = 0; // count of similar pairs
+		int gaps = 0; // count of gaps
+
+		char c1, c2;
+		int code;
+
+		int i = cell.getRow(); // traceback start row
+		int j = cell.getCol(); // traceback start col
+		int k = i * n;
+
+		boolean stillGoing = true; // traceback flag: true -> continue & false
+								   // -> stop
+
+		while (stillGoing) {
+			code = cellAt(cells, k + j);
+			switch (code & DIRECTION_MASK) {
+			case Directions.UP:
+				// Follow the vertical gap up to the cell where it was opened
+				do {
+					reversed1[len1++] = a1[--i];
+					reversed2[len2++] = Alignment.GAP;
+					reversed3[len3++] = Markups.GAP;
+					k -= n;
+					gaps++;
+					if ((code & EXTENDED_VERTICAL_GAP) == 0) {
+						break;
+					}
+					code = cellAt(cells, k + j);
+				} while (true);
+				break;
+			case Directions.DIAGONAL:
+				c1 = a1[--i];
+				c2 = a2[--j];
+				k -= n;
+				reversed1[len1++] = c1;
+				reversed2[len2++] = c2;
+				if (c1 == c2) {
+					reversed3[len3++] = Markups.IDENTITY;
+					identity++;
+					similarity++;
+				} else if (scores[c1][c2] > 0) {
+					reversed3[len3++] = Markups.SIMILARITY;
+					similarity++;
+				} else {
+					reversed3[len3++] = Markups.MISMATCH;
+				}
+				break;
+			case Directions.LEFT:
+				// Follow the horizontal gap up to the cell where it was opened
+				do {
+					reversed1[len1++] = Alignment.GAP;
+					reversed2[len2++] = a2[--j];
+					reversed3[len3++] = Markups.GAP;
+					gaps++;
+					if ((code & EXTENDED_HORIZONTAL_GAP) == 0) {
+						break;
+					}
+					code = cellAt(cells, k + j);
+				} while (true);
+				break;
+			case Directions.STOP:
+				stillGoing = false;
+			}
+		}
+
+		alignment.setSequence1(reverse(reversed1, len1));
+		alignment.setStart1(i);
+		alignment.setSequence2(reverse(reversed2, len2));
+		alignment.setStart2(j);
+		alignment.setMarkupLine(reverse(reversed3, len3));
+		alignment.setIdentity(identity);
+		alignment.setGaps(gaps);
+		alignment.setSimilarity(similarity);
+
+		return alignment;
+	}
+
+	/**
+	 * Returns a cell of a packed traceback matrix
+	 * 
+	 * @param cells
+	 *            packed traceback matrix, two cells per byte
+	 * @param l
+	 *            index of the cell
+	 * @return the direction and the gap extension flags of the cell
+	 */
+	private static int cellAt(byte[] cells, int l) {
+		return (cells[l >> 1] >> ((l & 1) << 2)) & 0xF;
+	}
+
 	/**
 	 * Returns the maximum of 4 float numbers.
 	 * 
@@ -307,7 +1330,7 @@ public class SmithWatermanGotoh {
 	 *            float #4
 	 * @return The maximum of a, b, c and d.
 	 */
-	private static float maximum(float a, float b, float c, float d) {
+	static float maximum(float a, float b, float c, float d) {
 		if (a > b) {
 			if (a > c) {
 				return a > d ? a : d;
@@ -0,0 +1,315 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package jaligner;
+
+import java.util.Arrays;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Striped Smith-Waterman-Gotoh score kernel (Farrar, 2007) written with the
+ * JDK Vector API. Sequence #2 (the query) is split into as many segments as
+ * there are vector lanes, so each lane works on its own segment of a row. The
+ * horizontal gap dependency between the segments is resolved afterwards by
+ * the "lazy F" loop, which only runs while a gap can still change a cell.
+ * <p>
+ * This class is only loaded when the <code>jdk.incubator.vector</code> module
+ * is available, see {@link SmithWatermanGotoh#setEngine(int)}.
+ */
+
+final class StripedSmithWaterman {
+	/**
+	 * Vector shape used for the scores
+	 */
+	private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+	/**
+	 * Number of lanes in a vector
+	 */
+	private static final int LANES = SPECIES.length();
+
+	/**
+	 * Hidden constructor
+	 */
+	private StripedSmithWaterman() {
+		super();
+	}
+
+	/**
+	 * Computes the best local alignment score of two arrays of residues. The
+	 * result is the same as the one of the scalar kernel of
+	 * {@link SmithWatermanGotoh}.
+	 *
+	 * @param a1
+	 *            sequence #1
+	 * @param length1
+	 *            number of residues of sequence #1
+	 * @param a2
+	 *            sequence #2, the striped query
+	 * @param length2
+	 *            number of residues of sequence #2
+	 * @param matrix
+	 *            scoring matrix
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @return the best local alignment score
+	 */
+	static float score(char[] a1, int length1, char[] a2, int length2,
+			float[][] matrix, float o, float e) {
+		if (length1 == 0 || length2 == 0) {
+			return 0;
+		}
+
+		// Striped rows of the residues of a1, built on demand
+		float[][] profile = new float[matrix.length][];
+		int segments = segments(length2);
+		for (int i = 0; i < length1; i++) {
+			if (profile[a1[i]] == null) {
+				float[] row = new float[length2];
+				for (int j = 0; j < length2; j++) {
+					row[j] = matrix[a1[i]][a2[j]];
+				}
+				profile[a1[i]] = stripe(row, segments);
+			}
+		}
+		return score(a1, length1, profile, segments, o, e, null,
+				Float.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Computes the best local alignment score of a sequence against a query
+	 * profile. The result is the same as the one of the scalar kernel of
+	 * {@link SmithWatermanGotoh}.
+	 *
+	 * @param a1
+	 *            sequence #1
+	 * @param length1
+	 *            number of residues of sequence #1
+	 * @param profile
+	 *            query profile of sequence #2
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @return the best local alignment score
+	 */
+	static float score(char[] a1, int length1, QueryProfile profile, float o,
+			float e) {
+		return score(a1, length1, profile, o, e, Float.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Computes the best local alignment score of a sequence against a query
+	 * profile, stopping as soon as it is known to reach a target or not
+	 *
+	 * @param a1
+	 *            sequence #1
+	 * @param length1
+	 *            number of residues of sequence #1
+	 * @param profile
+	 *            query profile of sequence #2
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param target
+	 *            score at which to stop
+	 * @return the best local alignment score, or when stopped early a score
+	 *         on the same side of the target as the best one
+	 */
+	static float score(char[] a1, int length1, QueryProfile profile,
+			float o, float e, float target) {
+		if (length1 == 0 || profile.length() == 0) {
+			return 0;
+		}
+		return score(a1, length1, profile.getStripedRows(),
+				segments(profile.length()), o, e,
+				target == Float.POSITIVE_INFINITY ? null : profile
+						.getBestScores(), target);
+	}
+
+	/**
+	 * Striped kernel
+	 *
+	 * @param a1
+	 *            sequence #1
+	 * @param length1
+	 *            number of residues of sequence #1
+	 * @param profile
+	 *            striped scores of the query for every residue of a1
+	 * @param segments
+	 *            number of segments of the query
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param best
+	 *            best score of each residue against the query, or null to
+	 *            compute the whole matrix
+	 * @param target
+	 *            score at which to stop, when best is not null
+	 * @return the best local alignment score, or when stopped early a score
+	 *         on the same side of the target as the best one
+	 */
+	private static float score(char[] a1, int length1, float[][] profile,
+			int segments, float o, float e, float[] best, float target) {
+		int size = segments * LANES;
+
+		Scratch scratch = Scratch.get();
+		float[] hLoad = scratch.floats(0, size); // scores of the previous row
+		float[] hStore = scratch.floats(1, size); // scores of the current row
+		float[] gaps = scratch.floats(2, size); // scores if a1 aligns to a gap
+		Arrays.fill(hLoad, 0, size, 0);
+		Arrays.fill(hStore, 0, size, 0);
+		Arrays.fill(gaps, 0, size, Float.NEGATIVE_INFINITY);
+
+		FloatVector zero = FloatVector.zero(SPECIES);
+		FloatVector minusInfinity = FloatVector.broadcast(SPECIES,
+				Float.NEGATIVE_INFINITY);
+		FloatVector vMax;
+		FloatVector vH, vE, vF, vOpen;
+		float[] swap;
+		float max = 0;
+		float rowMax;
+
+		// Best scores the rows left to compute can add
+		float remaining = 0;
+		if (best != null) {
+			for (int i = 0; i < length1; i++) {
+				remaining += best[a1[i]];
+			}
+		}
+
+		for (int i = 0; i < length1; i++) {
+			float[] p = profile[a1[i]];
+
+			// The diagonal of the first segment is the last segment of the
+			// previous row shifted by one lane
+			vH = zero.slice(LANES - 1,
+					FloatVector.fromArray(SPECIES, hStore, size - LANES));
+			vF = minusInfinity;
+			vMax = zero;
+
+			swap = hLoad;
+			hLoad = hStore;
+			hStore = swap;
+
+			for (int k = 0, offset = 0; k < segments; k++, offset += LANES) {
+				vH = vH.add(FloatVector.fromArray(SPECIES, p, offset));
+				vE = FloatVector.fromArray(SPECIES, gaps, offset);
+				vH = vH.max(vE).max(vF).max(zero);
+				vMax = vMax.max(vH);
+				vH.intoArray(hStore, offset);
+
+				vOpen = vH.sub(o);
+				vE.sub(e).max(vOpen).intoArray(gaps, offset);
+				vF = vF.sub(e).max(vOpen);
+
+				vH = FloatVector.fromArray(SPECIES, hLoad, offset);
+			}
+
+			// Lazy F: carry the horizontal gaps over the segment boundaries
+			// until none of them can improve a cell any more
+			vF = minusInfinity.slice(LANES - 1, vF);
+			for (int k = 0;;) {
+				int offset = k * LANES;
+				vH = FloatVector.fromArray(SPECIES, hStore, offset);
+				if (!vF.compare(VectorOperators.GT, vH.sub(o - e)).anyTrue()) {
+					break;
+				}
+				vH = vH.max(vF);
+				vMax = vMax.max(vH);
+				vH.intoArray(hStore, offset);
+				FloatVector.fromArray(SPECIES, gaps, offset).max(vH.sub(o))
+						.intoArray(gaps, offset);
+				vF = vF.sub(e);
+				if (++k == segments) {
+					k = 0;
+					vF = minusInfinity.slice(LANES - 1, vF);
+				}
+			}
+
+			rowMax = vMax.reduceLanes(VectorOperators.MAX);
+			if (rowMax > max) {
+				max = rowMax;
+			}
+			if (best != null) {
+				remaining -= best[a1[i]];
+				if (max >= target || rowMax + remaining < target) {
+					break;
+				}
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Stripes all the rows of a query profile
+	 *
+	 * @param rows
+	 *            scores indexed by residue then by query position
+	 * @param shared
+	 *            row shared by several residues, striped only once
+	 * @return striped scores indexed by residue
+	 */
+	static float[][] stripe(float[][] rows, float[] shared) {
+		int segments = segments(shared.length);
+		float[] stripedShared = stripe(shared, segments);
+		float[][] striped = new float[rows.length][];
+		for (int c = 0; c < rows.length; c++) {
+			striped[c] = rows[c] == shared ? stripedShared : stripe(rows[c],
+					segments);
+		}
+		return striped;
+	}
+
+	/**
+	 * Returns the number of segments of a query
+	 *
+	 * @param length
+	 *            length of the query
+	 * @return number of segments
+	 */
+	private static int segments(int length) {
+		return (length + LANES - 1) / LANES;
+	}
+
+	/**
+	 * Returns the striped scores of a residue against the query
+	 *
+	 * @param row
+	 *            scores of the residue by query position
+	 * @param segments
+	 *            number of segments of the query
+	 * @return the scores, segment after segment, lane after lane
+	 */
+	private static float[] stripe(float[] row, int segments) {
+		float[] striped = new float[segments * LANES];
+		for (int k = 0, l = 0; k < segments; k++) {
+			for (int lane = 0; lane < LANES; lane++, l++) {
+				int j = lane * segments + k;
+				// Padding never scores, so it never starts nor extends a path
+				striped[l] = j < row.length ? row[j] : Float.NEGATIVE_INFINITY;
+			}
+		}
+		return striped;
+	}
+}
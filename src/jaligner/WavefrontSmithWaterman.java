@@ -0,0 +1,284 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package jaligner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Constructs the traceback matrices of one large alignment in parallel. The
+ * matrix is cut into square tiles of {@link #TILE} rows and columns, small
+ * enough for their traceback cells to stay in cache, and the tiles are
+ * computed along anti-diagonals: a tile only needs the tiles above and on the
+ * left of it, so all the tiles of an anti-diagonal are independent.
+ * <p>
+ * Each cell is computed with the same operations as the sequential
+ * construction of {@link SmithWatermanGotoh}, so the traceback matrices, and
+ * the alignment, are the same.
+ */
+
+final class WavefrontSmithWaterman {
+	/**
+	 * Number of rows and columns of a tile
+	 */
+	static final int TILE = 256;
+
+	/**
+	 * Sequence #1
+	 */
+	private final char[] a1;
+
+	/**
+	 * Sequence #2
+	 */
+	private final char[] a2;
+
+	/**
+	 * Scoring matrix
+	 */
+	private final float[][] matrix;
+
+	/**
+	 * Open gap penalty
+	 */
+	private final float o;
+
+	/**
+	 * Extend gap penalty
+	 */
+	private final float e;
+
+	/**
+	 * Number of rows and columns of the traceback matrices
+	 */
+	private final int m, n;
+
+	/**
+	 * Number of tile rows and columns
+	 */
+	private final int rows, cols;
+
+	/**
+	 * Traceback matrices
+	 */
+	private final byte[] pointers;
+
+	private final short[] sizesOfVerticalGaps;
+
+	private final short[] sizesOfHorizontalGaps;
+
+	/**
+	 * Scores of each column at the last row computed by its tiles: if xi
+	 * aligns to a gap after yj, and best score of alignment x1...xi to y1...yj
+	 */
+	private final float[] g, v;
+
+	/**
+	 * Scores of each row at the last column computed by its tiles: if yj
+	 * aligns to a gap after xi, and best score of alignment x1...xi to y1...yj
+	 */
+	private final float[] h, w;
+
+	/**
+	 * Best score of the cell above and on the left of each tile
+	 */
+	private final float[] corners;
+
+	/**
+	 * Traceback start of each tile
+	 */
+	private final Cell[] cells;
+
+	/**
+	 * Constructor
+	 */
+	private WavefrontSmithWaterman(char[] a1, char[] a2, float[][] matrix,
+			float o, float e, byte[] pointers, short[] sizesOfVerticalGaps,
+			short[] sizesOfHorizontalGaps) {
+		super();
+		this.a1 = a1;
+		this.a2 = a2;
+		this.matrix = matrix;
+		this.o = o;
+		this.e = e;
+		this.pointers = pointers;
+		this.sizesOfVerticalGaps = sizesOfVerticalGaps;
+		this.sizesOfHorizontalGaps = sizesOfHorizontalGaps;
+		m = a1.length + 1;
+		n = a2.length + 1;
+		rows = (m - 1 + TILE - 1) / TILE;
+		cols = (n - 1 + TILE - 1) / TILE;
+
+		g = new float[n];
+		v = new float[n];
+		for (int j = 0; j < n; j++) {
+			g[j] = Float.NEGATIVE_INFINITY;
+		}
+		h = new float[m];
+		w = new float[m];
+		for (int i = 0; i < m; i++) {
+			h[i] = Float.NEGATIVE_INFINITY;
+		}
+		corners = new float[(rows + 1) * (cols + 1)];
+		cells = new Cell[rows * cols];
+	}
+
+	/**
+	 * Constructs the traceback matrices, see
+	 * {@link SmithWatermanGotoh#align(Sequence, Sequence, jaligner.matrix.Matrix, float, float)}
+	 *
+	 * @param a1
+	 *            sequence #1
+	 * @param a2
+	 *            sequence #2
+	 * @param matrix
+	 *            scoring matrix
+	 * @param o
+	 *            open gap penalty
+	 * @param e
+	 *            extend gap penalty
+	 * @param pointers
+	 *            traceback directions, with the boundaries set to STOP
+	 * @param sizesOfVerticalGaps
+	 *            sizes of the vertical gaps, set to 1
+	 * @param sizesOfHorizontalGaps
+	 *            sizes of the horizontal gaps, set to 1
+	 * @param pool
+	 *            pool computing the tiles
+	 * @return The cell where the traceback starts.
+	 */
+	static Cell construct(char[] a1, char[] a2, float[][] matrix, float o,
+			float e, byte[] pointers, short[] sizesOfVerticalGaps,
+			short[] sizesOfHorizontalGaps, ForkJoinPool pool) {
+		WavefrontSmithWaterman wavefront = new WavefrontSmithWaterman(a1, a2,
+				matrix, o, e, pointers, sizesOfVerticalGaps,
+				sizesOfHorizontalGaps);
+		pool.invoke(ForkJoinTask.adapt(wavefront::constructTiles));
+
+		// The first cell of the best score in row order, like the sequential
+		// construction
+		Cell cell = new Cell();
+		for (Cell best : wavefront.cells) {
+			if (best.getScore() > cell.getScore()
+					|| (best.getScore() == cell.getScore() && (best.getRow() < cell
+							.getRow() || (best.getRow() == cell.getRow() && best
+							.getCol() < cell.getCol())))) {
+				cell = best;
+			}
+		}
+		return cell;
+	}
+
+	/**
+	 * Computes the anti-diagonals of tiles one after the other, and the tiles
+	 * of each anti-diagonal in parallel
+	 */
+	private void constructTiles() {
+		List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+		for (int diagonal = 0; diagonal < rows + cols - 1; diagonal++) {
+			tasks.clear();
+			for (int row = Math.max(0, diagonal - cols + 1); row < rows
+					&& row <= diagonal; row++) {
+				int tileRow = row, tileCol = diagonal - row;
+				tasks.add(ForkJoinTask.adapt(() -> tile(tileRow, tileCol)));
+			}
+			ForkJoinTask.invokeAll(tasks);
+		}
+	}
+
+	/**
+	 * Computes a tile
+	 *
+	 * @param row
+	 *            tile row
+	 * @param col
+	 *            tile column
+	 */
+	private void tile(int row, int col) {
+		int firstRow = row * TILE + 1;
+		int lastRow = Math.min(firstRow + TILE, m);
+		int firstCol = col * TILE + 1;
+		int lastCol = Math.min(firstCol + TILE, n);
+
+		float f; // score of alignment x1...xi to y1...yi if xi aligns to yi
+		float hi; // score if yi aligns to a gap after xi
+		float vLeft; // best score of alignment x1...xi to y1...y(j-1)
+		float vDiagonal;
+		float vAbove = corners[row * (cols + 1) + col];
+
+		float similarityScore, g1, g2, h1, h2;
+
+		Cell cell = new Cell();
+
+		for (int i = firstRow, k = i * n; i < lastRow; i++, k += n) {
+			hi = h[i];
+			vLeft = w[i];
+			vDiagonal = vAbove;
+			vAbove = vLeft;
+			for (int j = firstCol, l = k + j; j < lastCol; j++, l++) {
+				similarityScore = matrix[a1[i - 1]][a2[j - 1]];
+
+				// Fill the matrices
+				f = vDiagonal + similarityScore;
+
+				g1 = g[j] - e;
+				g2 = v[j] - o;
+				if (g1 > g2) {
+					g[j] = g1;
+					sizesOfVerticalGaps[l] = (short) (sizesOfVerticalGaps[l - n] + 1);
+				} else {
+					g[j] = g2;
+				}
+
+				h1 = hi - e;
+				h2 = vLeft - o;
+				if (h1 > h2) {
+					hi = h1;
+					sizesOfHorizontalGaps[l] = (short) (sizesOfHorizontalGaps[l - 1] + 1);
+				} else {
+					hi = h2;
+				}
+
+				vDiagonal = v[j];
+				v[j] = SmithWatermanGotoh.maximum(f, g[j], hi, 0);
+				vLeft = v[j];
+
+				// Determine the traceback direction
+				if (v[j] == 0) {
+					pointers[l] = Directions.STOP;
+				} else if (v[j] == f) {
+					pointers[l] = Directions.DIAGONAL;
+				} else if (v[j] == g[j]) {
+					pointers[l] = Directions.UP;
+				} else {
+					pointers[l] = Directions.LEFT;
+				}
+
+				// Set the traceback start at the current cell i, j and score
+				if (v[j] > cell.getScore()) {
+					cell.set(i, j, v[j]);
+				}
+			}
+			h[i] = hi;
+			w[i] = vLeft;
+		}
+		corners[(row + 1) * (cols + 1) + col + 1] = v[lastCol - 1];
+		cells[row * cols + col] = cell;
+	}
+}
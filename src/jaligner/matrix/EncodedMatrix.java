@@ -0,0 +1,139 @@
+/*
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package jaligner.matrix;
+
+import java.util.Arrays;
+
+/**
+ * Scoring matrix indexed by residue codes instead of characters. The residues
+ * of an alphabet are numbered from 0, and all the other characters share the
+ * next code, which scores 0 against every residue like the characters missing
+ * from a {@link Matrix}. The scores are dense, <code>(size x size)</code>
+ * instead of indexed by character, so the scoring loops touch a few hundred
+ * floats instead of the rows of every character.
+ * <p>
+ * Sequences encoded with {@link #encode(byte[])} can be passed to any score
+ * method instead of the characters, as long as this matrix is passed along
+ * with them.
+ */
+
+public class EncodedMatrix extends Matrix {
+    /**
+     *
+     */
+    private static final long serialVersionUID = 4914398120587133502L;
+
+    /**
+     * Residues of the alphabet, indexed by code
+     */
+    private final char[] alphabet;
+
+    /**
+     * Code of each ASCII character
+     */
+    private final byte[] codes = new byte[128];
+
+    /**
+     * Constructor
+     *
+     * @param matrix
+     *            scoring matrix indexed by character
+     * @param alphabet
+     *            ASCII residues to encode, at most 127
+     */
+    public EncodedMatrix(Matrix matrix, char[] alphabet) {
+        super(matrix.getId(), encode(matrix.getScores(), alphabet));
+        this.alphabet = alphabet.clone();
+        Arrays.fill(codes, (byte) alphabet.length);
+        for (int c = 0; c < alphabet.length; c++) {
+            codes[alphabet[c]] = (byte) c;
+        }
+    }
+
+    /**
+     * Returns the dense scores of an alphabet
+     *
+     * @param scores
+     *            scores indexed by character
+     * @param alphabet
+     *            residues
+     * @return scores indexed by code, the last code scoring 0
+     */
+    private static float[][] encode(float[][] scores, char[] alphabet) {
+        float[][] encoded = new float[alphabet.length + 1][alphabet.length + 1];
+        for (int c = 0; c < alphabet.length; c++) {
+            for (int d = 0; d < alphabet.length; d++) {
+                encoded[c][d] = scores[alphabet[c]][alphabet[d]];
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * @return Returns the number of codes, the alphabet and the code of the
+     *         other characters.
+     */
+    public int size() {
+        return alphabet.length + 1;
+    }
+
+    /**
+     *
+     * @param residue
+     * @return code of the residue
+     */
+    public byte encode(char residue) {
+        return residue < codes.length ? codes[residue] : (byte) alphabet.length;
+    }
+
+    /**
+     *
+     * @param residues
+     *            ASCII residues
+     * @return codes of the residues
+     */
+    public byte[] encode(byte[] residues) {
+        byte[] encoded = new byte[residues.length];
+        for (int i = 0; i < residues.length; i++) {
+            encoded[i] = residues[i] >= 0 ? codes[residues[i]]
+                    : (byte) alphabet.length;
+        }
+        return encoded;
+    }
+
+    /**
+     *
+     * @param residues
+     * @return codes of the residues
+     */
+    public byte[] encode(String residues) {
+        byte[] encoded = new byte[residues.length()];
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = encode(residues.charAt(i));
+        }
+        return encoded;
+    }
+
+    /**
+     *
+     * @param code
+     * @return residue of the code, '?' for the other characters
+     */
+    public char decode(byte code) {
+        return code < alphabet.length ? alphabet[code] : '?';
+    }
+}
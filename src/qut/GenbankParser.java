@@ -0,0 +1,319 @@
+package qut;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// GenBank parser reading the bytes of a memory-mapped file, with the same results as GenbankRecord.Parse and
+// Gene.ParseGenes but without a String per line: lines are (start, end) ranges of the mapping, locations are parsed
+// from the bytes, a translation is gathered into a reused buffer and only copied when the protein store has not seen
+// it, and the ORIGIN block is counted first so the bases are written straight into one genome array of the right size.
+// Malformed locations skip their gene, where the line parser threw. A parser reads the lines of a range of the file,
+// so GenbankStream can hand disjoint ranges of the features to different threads.
+public class GenbankParser
+{
+    private static final byte[] CDS = "CDS".getBytes();
+    private static final byte[] ORIGIN = "ORIGIN".getBytes();
+    private static final byte[] COMPLEMENT = "complement(".getBytes();
+    private static final byte[] JOIN = "join(".getBytes();
+    private static final byte[] GENE = "/gene=\"".getBytes();
+    private static final byte[] GENE_ID = "/db_xref=\"GeneID:".getBytes();
+    private static final byte[] TRANSLATION = "/translation=".getBytes();
+    private static final byte[] END = "//".getBytes();
+
+    private final MappedByteBuffer buffer;
+    private final int limit;
+    int next; // start of the next line
+    int stop; // lines from here on belong to another parser
+    int origin = -1; // start of the ORIGIN line, once met
+    private int start, end; // current line, without its terminator
+    private byte[] residues = new byte[1024]; // translation being gathered
+    private int count;
+    private boolean done;
+
+    // Parser of the lines starting in [from, stop)
+    GenbankParser(MappedByteBuffer buffer, int from, int stop)
+    {
+        this.buffer = buffer;
+        this.limit = buffer.limit();
+        this.next = from;
+        this.stop = stop;
+    }
+
+    static MappedByteBuffer Map(String file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ))
+        {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    public static GenbankRecord Parse(String file) throws IOException
+    {
+        MappedByteBuffer buffer = Map(file);
+        GenbankParser parser = new GenbankParser(buffer, 0, buffer.limit());
+        GenbankRecord record = new GenbankRecord();
+        for (Gene gene = parser.Next(); gene != null; gene = parser.Next())
+            record.genes.add(gene);
+        if (parser.origin < 0) // EOF
+            record.genes.clear();
+        else
+            record.nucleotides = new NucleotideSequence(new GenbankParser(buffer, parser.origin, buffer.limit()).Origin());
+        return record;
+    }
+
+    // Same line ends as BufferedReader.readLine: \n, \r or \r\n
+    private boolean NextLine()
+    {
+        if (next >= stop || next >= limit)
+            return false;
+        start = next;
+        int i = start;
+        while (i < limit && buffer.get(i) != '\n' && buffer.get(i) != '\r')
+            i++;
+        end = i;
+        next = i < limit && buffer.get(i) == '\r' && i + 1 < limit && buffer.get(i + 1) == '\n' ? i + 2 : i + 1;
+        return true;
+    }
+
+    // Start of the ORIGIN line after the current one, -1 without any. The parser is left where it was.
+    int FindOrigin()
+    {
+        GenbankParser scout = new GenbankParser(buffer, next, stop);
+        while (scout.NextLine())
+            if (scout.Equals(scout.Label(), ORIGIN))
+                return scout.start;
+        return -1;
+    }
+
+    // Start of a feature line other than a CDS near the middle of the remaining lines, -1 if they are too few. Such a
+    // line adds no gene whether or not it ends the CDS before it, so the parsers on each side of it find the genes of
+    // one parser over both sides.
+    int SplitPoint(int minimum)
+    {
+        if (stop - next < 2 * minimum)
+            return -1;
+        GenbankParser scout = new GenbankParser(buffer, next + (stop - next) / 2, stop - minimum);
+        scout.NextLine(); // most likely the end of a line
+        while (scout.NextLine())
+        {
+            long label = scout.Label();
+            if (To(label) != From(label) && !scout.Equals(label, CDS))
+                return scout.start;
+        }
+        return -1;
+    }
+
+    // Trimmed like String.trim, as [from, to) packed in a long
+    private long Trim(int from, int to)
+    {
+        while (from < to && (buffer.get(from) & 0xff) <= ' ')
+            from++;
+        while (to > from && (buffer.get(to - 1) & 0xff) <= ' ')
+            to--;
+        return (long) from << 32 | to;
+    }
+
+    private static int From(long range)
+    {
+        return (int) (range >>> 32);
+    }
+
+    private static int To(long range)
+    {
+        return (int) range;
+    }
+
+    // The first 20 characters of the line, trimmed
+    private long Label()
+    {
+        return Trim(start, Math.min(end, start + 20));
+    }
+
+    private boolean Equals(long range, byte[] text)
+    {
+        return To(range) - From(range) == text.length && StartsWith(From(range), To(range), text);
+    }
+
+    private boolean StartsWith(int from, int to, byte[] prefix)
+    {
+        if (to - from < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++)
+            if (buffer.get(from + i) != prefix[i])
+                return false;
+        return true;
+    }
+
+    private int IndexOf(int from, int to, char c)
+    {
+        for (int i = from; i < to; i++)
+            if (buffer.get(i) == c)
+                return i;
+        return -1;
+    }
+
+    // Decimal number, -1 if it is not one
+    private int Number(int from, int to)
+    {
+        if (from >= to)
+            return -1;
+        long number = 0;
+        for (int i = from; i < to; i++)
+        {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9 || (number = number * 10 + digit) > Integer.MAX_VALUE)
+                return -1;
+        }
+        return (int) number;
+    }
+
+    private String Text(int from, int to)
+    {
+        byte[] bytes = new byte[Math.max(0, to - from)];
+        buffer.get(from, bytes);
+        return new String(bytes);
+    }
+
+    // First base of a location: the lowest start of a join, -1 for partial or unreadable ones
+    private int Location(int from, int to)
+    {
+        if (StartsWith(from, to, JOIN))
+        {
+            from += JOIN.length;
+            to--;
+            // String.split drops the trailing empty parts
+            while (to > from && buffer.get(to - 1) == ',')
+                to--;
+            int location = Integer.MAX_VALUE;
+            for (int part = from; part <= to; )
+            {
+                int comma = IndexOf(part, to, ',');
+                int partEnd = comma < 0 ? to : comma;
+                if (part < partEnd && buffer.get(part) == '<')
+                    return -1;
+                int separator = IndexOf(part, partEnd, '.');
+                if (separator <= part)
+                    return -1;
+                int start = Number(part, separator);
+                if (start < 0)
+                    return -1;
+                location = Math.min(location, start);
+                part = partEnd + 1;
+            }
+            return location;
+        }
+        if (from < to && buffer.get(from) == '<')
+            return -1;
+        int separator = IndexOf(from, to, '.');
+        return separator < 0 ? -1 : Number(from, separator);
+    }
+
+    private void Append(int from, int to)
+    {
+        if (to <= from)
+            return;
+        if (count + to - from > residues.length)
+            residues = Arrays.copyOf(residues, Math.max(2 * residues.length, count + to - from));
+        buffer.get(from, residues, count, to - from);
+        count += to - from;
+    }
+
+    // Next CDS feature before ORIGIN or the end of the range, null when there is none left, following Gene.ParseGenes
+    // line for line. A CDS running to the end of the range ends there, as it would at the next feature line.
+    Gene Next()
+    {
+        while (!done && NextLine())
+        {
+            long label = Label();
+            Gene gene = null;
+
+            if (Equals(label, CDS))
+            {
+                int strand = 1;
+                String GeneName = null, GeneID = null;
+                boolean translation = false;
+
+                int from = start + 21;
+                int to = end;
+                if (StartsWith(from, to, COMPLEMENT))
+                {
+                    from += COMPLEMENT.length;
+                    to--;
+                    strand = -1;
+                }
+                int location = Location(from, to);
+
+                // loop through attributes of CDS (/db_xref, /translation, etc)
+                while (NextLine())
+                {
+                    label = Label();
+                    if (To(label) != From(label)) // we've come to the end of the CDS
+                        break;
+
+                    long line = Trim(start, end);
+                    int lineFrom = From(line), lineTo = To(line);
+                    if (StartsWith(lineFrom, lineTo, GENE))
+                        GeneName = Text(lineFrom + 7, lineTo - 1);
+                    else if (StartsWith(lineFrom, lineTo, GENE_ID))
+                        GeneID = Text(lineFrom + 10, lineTo - 1);
+                    else if (StartsWith(lineFrom, lineTo, TRANSLATION))
+                    {
+                        count = 0;
+                        boolean last = buffer.get(lineTo - 1) == '"';
+                        Append(lineFrom + 14, last ? lineTo - 1 : lineTo);
+                        while (!last && NextLine())
+                        {
+                            line = Trim(start, end);
+                            lineFrom = From(line);
+                            lineTo = To(line);
+                            last = lineTo > lineFrom && buffer.get(lineTo - 1) == '"';
+                            Append(lineFrom, last ? lineTo - 1 : lineTo);
+                        }
+                        translation = true;
+                    }
+                }
+                if (GeneID != null && location > 0 && translation)
+                    gene = new Gene(GeneID + "(" + GeneName + ")", strand, location,
+                            ProteinStore.Intern(residues, count));
+            }
+            // The line ending a CDS is checked too, as ParseGenes does
+            if (Equals(label, ORIGIN))
+            {
+                origin = start;
+                done = true;
+            }
+            if (gene != null)
+                return gene;
+        }
+        done = true;
+        return null;
+    }
+
+    // Bases of the ORIGIN block, from the ORIGIN line: ten per block of eleven characters from column 10 of each line,
+    // up to //
+    byte[] Origin()
+    {
+        NextLine(); // ORIGIN
+        int origin = next;
+        int length = 0;
+        while (NextLine() && !StartsWith(start, end, END))
+            for (int i = start + 10; i < end; i += 11)
+                length += Math.min(10, end - i);
+
+        byte[] bases = new byte[length];
+        next = origin;
+        int position = 0;
+        while (NextLine() && !StartsWith(start, end, END))
+            for (int i = start + 10; i < end; i += 11)
+            {
+                int n = Math.min(10, end - i);
+                buffer.get(i, bases, position, n);
+                position += n;
+            }
+        return bases;
+    }
+}
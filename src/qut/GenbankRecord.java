@@ -7,6 +7,7 @@ public class GenbankRecord
 {
     public NucleotideSequence nucleotides;
     public List<Gene> genes = new ArrayList<Gene>();
+    public PromoterTrack track; // built on demand, see PromoterTrack
 
     public boolean Parse(BufferedReader reader) throws IOException
     {
@@ -0,0 +1,115 @@
+package qut;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// CDS features of a GenBank file as a stream, each parsed when the stream reaches it, so a pipeline can check genes
+// for homology while the next ones are still being read. Sequentially the features stream straight from the start
+// of the file. The first split looks for the ORIGIN line, a pass over the bytes without parsing anything, then
+// splits the features at feature lines other than CDS, where the genes on each side are the same as those of one
+// pass. The genome is only read when an upstream region is asked for, after all the features.
+public class GenbankStream
+{
+    private static final int MINIMUM_SPLIT = 1 << 14; // bytes of features, a dozen genes or so
+    private static final int BYTES_PER_GENE = 1 << 10;
+
+    private final MappedByteBuffer buffer;
+    private volatile int origin = -2; // start of the ORIGIN line, -1 without any, -2 not found yet
+    private NucleotideSequence nucleotides;
+
+    private GenbankStream(MappedByteBuffer buffer)
+    {
+        this.buffer = buffer;
+    }
+
+    public static GenbankStream Open(String file) throws IOException
+    {
+        return new GenbankStream(GenbankParser.Map(file));
+    }
+
+    // Genes of the file in order, sequential until made parallel
+    public Stream<Gene> Genes()
+    {
+        return StreamSupport.stream(new Genes(new GenbankParser(buffer.duplicate(), 0, buffer.limit()), false), false);
+    }
+
+    // Genome of the file, read on first use, null without an ORIGIN section
+    public synchronized NucleotideSequence Nucleotides()
+    {
+        if (nucleotides == null)
+        {
+            int line = origin;
+            if (line == -2)
+                origin = line = new GenbankParser(buffer.duplicate(), 0, buffer.limit()).FindOrigin();
+            if (line < 0)
+                return null;
+            nucleotides = new NucleotideSequence(new GenbankParser(buffer.duplicate(), line, buffer.limit()).Origin());
+        }
+        return nucleotides;
+    }
+
+    public NucleotideRegion GetUpstreamRegion(Gene gene)
+    {
+        return Nucleotides().GetUpstreamRegion(gene);
+    }
+
+    private class Genes implements Spliterator<Gene>
+    {
+        private final GenbankParser parser;
+        private boolean bounded; // range known to end at the ORIGIN line
+
+        Genes(GenbankParser parser, boolean bounded)
+        {
+            this.parser = parser;
+            this.bounded = bounded;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Gene> action)
+        {
+            Gene gene = parser.Next();
+            if (parser.origin >= 0)
+                origin = parser.origin;
+            if (gene == null)
+                return false;
+            action.accept(gene);
+            return true;
+        }
+
+        @Override
+        public Spliterator<Gene> trySplit()
+        {
+            if (!bounded)
+            {
+                int line = parser.FindOrigin();
+                if (line < 0)
+                    return null;
+                origin = line;
+                parser.stop = line;
+                bounded = true;
+            }
+            int split = parser.SplitPoint(MINIMUM_SPLIT);
+            if (split < 0)
+                return null;
+            Genes prefix = new Genes(new GenbankParser(buffer.duplicate(), parser.next, split), true);
+            parser.next = split;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize()
+        {
+            return bounded ? (parser.stop - parser.next) / BYTES_PER_GENE : Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics()
+        {
+            return ORDERED | NONNULL | IMMUTABLE;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package qut;
 
+import jaligner.QueryProfile;
 import java.io.*;
 import java.util.*;
 
@@ -9,6 +10,7 @@ public class Gene
     public int location;
     public String name;
     public PeptideSequence sequence;
+    public QueryProfile profile; // reference genes only
 
     public Gene()
     {
@@ -19,7 +21,15 @@ public class Gene
         this.name = name;
         this.strand = strand;
         this.location = location;
-        this.sequence = new PeptideSequence(sequence);
+        this.sequence = ProteinStore.Intern(sequence); // identical translations share one peptide
+    }
+
+    public Gene(String name, int strand, int location, PeptideSequence sequence)
+    {
+        this.name = name;
+        this.strand = strand;
+        this.location = location;
+        this.sequence = sequence;
     }
 
     public static List<Gene> ParseGenes(BufferedReader reader) throws IOException
@@ -0,0 +1,278 @@
+package qut;
+
+import jaligner.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Homology check shared by all the engines, with counters safe to update from any number of workers
+public class Homology
+{
+    public static final float THRESHOLD = 60;
+    public static final float OPEN_GAP = 10f;
+    public static final float EXTEND_GAP = 0.5f;
+
+    // Seed stage: off, strict (only accepts pairs whose ungapped HSP already reaches the threshold, so results
+    // never change) or fast (also rejects pairs without an HSP reaching the trigger, losing some sensitivity)
+    public static final int SEEDS_OFF = 0;
+    public static final int SEEDS_STRICT = 1;
+    public static final int SEEDS_FAST = 2;
+    public static final String SEEDS_PROPERTY = "qut.seeds";
+    public static final float DEFAULT_TRIGGER = 20;
+
+    private static volatile int seedMode = SEEDS_OFF;
+    private static volatile float trigger = DEFAULT_TRIGGER;
+    private static final ConcurrentMap<QueryProfile, SeedFilter> seedFilters = new ConcurrentHashMap<>();
+
+    private static final LongAdder seedAccepted = new LongAdder();
+    private static final LongAdder seedRejected = new LongAdder();
+
+    // Decisions of each reference gene, by peptide: the protein store makes identical translations the same peptide.
+    // They are kept until Forget is called with the profile of the reference gene.
+    private static final ConcurrentMap<QueryProfile, ConcurrentMap<PeptideSequence, Boolean>> decisions = new ConcurrentHashMap<>();
+    private static final LongAdder decided = new LongAdder();
+    private static final LongAdder decidedNanos = new LongAdder();
+    private static final LongAdder reused = new LongAdder();
+
+    // Score bounds kept on disk from one run to the next, off unless a file is given
+    public static final String CACHE_PROPERTY = "qut.cache";
+    public static final String CACHE_ENTRIES_PROPERTY = "qut.cache.entries";
+    private static ScoreCache cache;
+    private static final ConcurrentMap<QueryProfile, Long> profileKeys = new ConcurrentHashMap<>();
+    private static final LongAdder cached = new LongAdder();
+
+    static
+    {
+        String mode = System.getProperty(SEEDS_PROPERTY);
+        if ("strict".equals(mode))
+            seedMode = SEEDS_STRICT;
+        else if ("fast".equals(mode))
+            seedMode = SEEDS_FAST;
+
+        String path = System.getProperty(CACHE_PROPERTY);
+        if (path != null)
+        {
+            try
+            {
+                cache = ScoreCache.Open(path, Integer.getInteger(CACHE_ENTRIES_PROPERTY, ScoreCache.DEFAULT_ENTRIES));
+                if (cache == null)
+                    System.err.println("Score cache " + path + " is in use, running without it");
+                else
+                    Runtime.getRuntime().addShutdownHook(new Thread(Homology::CloseCache));
+            }
+            catch (IOException e)
+            {
+                System.err.println("Score cache " + path + " unavailable, running without it: " + e.getMessage());
+            }
+        }
+    }
+
+    public static boolean Homologous(PeptideSequence A, QueryProfile B)
+    {
+        ConcurrentMap<PeptideSequence, Boolean> known = Decisions(B);
+        Boolean decision = known.get(A);
+        if (decision != null)
+        {
+            reused.increment();
+            return decision;
+        }
+        long startTime = System.nanoTime();
+        decision = Prefilter(A, B);
+        if (decision == null)
+        {
+            decision = SmithWatermanGotoh.reaches(A.codes, B, OPEN_GAP, EXTEND_GAP, THRESHOLD);
+            if (decision)
+                Record(A, B, THRESHOLD, Float.POSITIVE_INFINITY);
+            else
+                Record(A, B, Float.NEGATIVE_INFINITY, THRESHOLD);
+        }
+        decidedNanos.add(System.nanoTime() - startTime);
+        decided.increment();
+        known.put(A, decision);
+        return decision;
+    }
+
+    // Checks all the genes of a record against a reference gene. The genes left after the cache and the seed stage
+    // are aligned together by the inter-sequence engine, the other engines decide them one pair at a time.
+    public static boolean[] Homologous(List<Gene> genes, QueryProfile B)
+    {
+        boolean[] homologous = new boolean[genes.size()];
+        if (SmithWatermanGotoh.getEngine() != SmithWatermanGotoh.INTER_SEQUENCE)
+        {
+            for (int g = 0; g < genes.size(); g++)
+                homologous[g] = Homologous(genes.get(g).sequence, B);
+            return homologous;
+        }
+
+        ConcurrentMap<PeptideSequence, Boolean> known = Decisions(B);
+        long startTime = System.nanoTime();
+        int count = 0;
+        int[] survivors = new int[genes.size()];
+        List<byte[]> targets = new ArrayList<>();
+        for (int g = 0; g < genes.size(); g++)
+        {
+            PeptideSequence peptide = genes.get(g).sequence;
+            Boolean decision = known.get(peptide);
+            if (decision != null)
+            {
+                reused.increment();
+                homologous[g] = decision;
+                continue;
+            }
+            count++;
+            decision = Prefilter(peptide, B);
+            if (decision != null)
+            {
+                homologous[g] = decision;
+                known.put(peptide, decision);
+            }
+            else
+            {
+                survivors[targets.size()] = g;
+                targets.add(peptide.codes);
+            }
+        }
+        float[] scores = SmithWatermanGotoh.score(B, targets, OPEN_GAP, EXTEND_GAP);
+        for (int t = 0; t < scores.length; t++)
+        {
+            PeptideSequence peptide = genes.get(survivors[t]).sequence;
+            homologous[survivors[t]] = scores[t] >= THRESHOLD;
+            known.put(peptide, homologous[survivors[t]]);
+            Record(peptide, B, scores[t], Math.nextUp(scores[t]));
+        }
+        decidedNanos.add(System.nanoTime() - startTime);
+        decided.add(count);
+        return homologous;
+    }
+
+    // Drops the decisions, seed filter and cache key of a reference gene that will not be checked again
+    public static void Forget(QueryProfile B)
+    {
+        decisions.remove(B);
+        seedFilters.remove(B);
+        profileKeys.remove(B);
+    }
+
+    private static ConcurrentMap<PeptideSequence, Boolean> Decisions(QueryProfile B)
+    {
+        return decisions.computeIfAbsent(B, profile -> new ConcurrentHashMap<>());
+    }
+
+    // Cache and seed stages, null when the pair has to be aligned. QueryProfile.upperBound is not checked here: it only
+    // rejects peptides of about ten residues, while the decision kernels already apply it row by row.
+    private static Boolean Prefilter(PeptideSequence A, QueryProfile B)
+    {
+        if (cache != null)
+        {
+            long bounds = cache.Lookup(ProfileKey(B), A.key);
+            if (ScoreCache.Lower(bounds) >= THRESHOLD || ScoreCache.Upper(bounds) <= THRESHOLD)
+            {
+                cached.increment();
+                return ScoreCache.Lower(bounds) >= THRESHOLD;
+            }
+        }
+        int mode = seedMode;
+        if (mode != SEEDS_OFF)
+        {
+            float hsp = seedFilters.computeIfAbsent(B, SeedFilter::new).score(A.codes);
+            // An ungapped alignment is a gapped one, so its score is a lower bound
+            if (hsp >= THRESHOLD)
+            {
+                seedAccepted.increment();
+                Record(A, B, hsp, Float.POSITIVE_INFINITY);
+                return true;
+            }
+            if (mode == SEEDS_FAST && hsp < trigger)
+            {
+                seedRejected.increment();
+                return false;
+            }
+        }
+        return null;
+    }
+
+    // Narrows the cached bounds of the score of a pair: lower <= score < upper
+    private static void Record(PeptideSequence A, QueryProfile B, float lower, float upper)
+    {
+        if (cache != null)
+            cache.Record(ProfileKey(B), A.key, lower, upper);
+    }
+
+    // Profiles are keyed by their residues, matrix and gap penalties, so a cache is never read with other scoring
+    private static long ProfileKey(QueryProfile B)
+    {
+        return profileKeys.computeIfAbsent(B, profile -> ScoreCache.Mix(ScoreCache.Hash(profile.getSequence().getSequence())
+                ^ ScoreCache.Mix(ScoreCache.Hash(profile.getMatrix().getId())
+                ^ ScoreCache.Mix((long) Float.floatToIntBits(OPEN_GAP) << 32 | Float.floatToIntBits(EXTEND_GAP)))));
+    }
+
+    private static void CloseCache()
+    {
+        try
+        {
+            cache.Close();
+        }
+        catch (IOException e)
+        {
+            System.err.println("Score cache not saved: " + e.getMessage());
+        }
+    }
+
+    // Decides a pair with the fast seed stage only, null when it would have to be aligned
+    public static Boolean SeedDecision(PeptideSequence A, QueryProfile B)
+    {
+        float hsp = seedFilters.computeIfAbsent(B, SeedFilter::new).score(A.codes);
+        if (hsp >= THRESHOLD)
+            return true;
+        if (hsp < trigger)
+            return false;
+        return null;
+    }
+
+    public static void SetSeedMode(int mode)
+    {
+        seedMode = mode;
+    }
+
+    public static int GetSeedMode()
+    {
+        return seedMode;
+    }
+
+    public static void SetTrigger(float score)
+    {
+        trigger = score;
+    }
+
+    public static void ResetCounters()
+    {
+        seedAccepted.reset();
+        seedRejected.reset();
+        decided.reset();
+        decidedNanos.reset();
+        reused.reset();
+        cached.reset();
+    }
+
+    public static String Report()
+    {
+        String report = "";
+        if (seedMode != SEEDS_OFF)
+            report += "Homology seeds: accepted " + seedAccepted.sum() + ", rejected " + seedRejected.sum()
+                    + " pairs without alignment" + System.lineSeparator();
+        long checks = decided.sum();
+        long repeats = reused.sum();
+        // A repeated pair would have taken as long as the average checked one
+        double saved = checks == 0 ? 0 : decidedNanos.sum() / 1e6 * repeats / checks;
+        report += "Homology dedup: reused " + repeats + " of " + (checks + repeats)
+                + " decisions, saving about " + String.format("%.0f", saved) + "ms" + System.lineSeparator()
+                + ProteinStore.Report();
+        if (cache != null)
+            report += System.lineSeparator() + "Homology cache: decided " + cached.sum() + " pairs from earlier runs"
+                    + System.lineSeparator() + cache.Report();
+        return report;
+    }
+}
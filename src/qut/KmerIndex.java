@@ -0,0 +1,156 @@
+package qut;
+
+import java.util.*;
+
+// Inverted index from reduced alphabet protein k-mers to the genes of the parsed GenBank records.
+// Genes sharing too few k-mers with a reference gene are not worth a full Smith-Waterman alignment.
+public class KmerIndex
+{
+    public static final int DEFAULT_K = 4;
+    public static final int DEFAULT_MIN_HITS = 3;
+
+    // Murphy et al. (2000) 10 letter alphabet: LVIM C A G ST P FYW EDNQ KR H, other residues break k-mers
+    private static final int ALPHABET = 10;
+    private static final byte[] reduced = new byte[128];
+
+    static
+    {
+        Arrays.fill(reduced, (byte) -1);
+        String[] groups = {"LVIM", "C", "A", "G", "ST", "P", "FYW", "EDNQ", "KR", "H"};
+        for (int group = 0; group < groups.length; group++)
+            for (char residue : groups[group].toCharArray())
+            {
+                reduced[residue] = (byte) group;
+                reduced[Character.toLowerCase(residue)] = (byte) group;
+            }
+    }
+
+    private final int k;
+    private final int minHits;
+
+    // postings[key] holds postingCounts[key] gene ids, each id at most once per key
+    private final int[][] postings;
+    private final int[] postingCounts;
+
+    // gene id -> (file, gene)
+    private int[] files = new int[1024];
+    private int[] genes = new int[1024];
+    private int size;
+    private int numFiles;
+
+    public KmerIndex()
+    {
+        this(DEFAULT_K, DEFAULT_MIN_HITS);
+    }
+
+    public KmerIndex(int k, int minHits)
+    {
+        if (k < 1 || k > 6)
+            throw new IllegalArgumentException("k must be between 1 and 6: " + k);
+        this.k = k;
+        this.minHits = minHits;
+        int keys = 1;
+        for (int i = 0; i < k; i++)
+            keys *= ALPHABET;
+        postings = new int[keys][];
+        postingCounts = new int[keys];
+    }
+
+    // Indexes the genes of the next parsed file, files are numbered in the order they are added
+    public synchronized int Add(List<Gene> fileGenes)
+    {
+        int file = numFiles++;
+        for (int g = 0; g < fileGenes.size(); g++)
+        {
+            int id = size++;
+            if (id == files.length)
+            {
+                files = Arrays.copyOf(files, id * 2);
+                genes = Arrays.copyOf(genes, id * 2);
+            }
+            files[id] = file;
+            genes[id] = g;
+
+            byte[] residues = fileGenes.get(g).sequence.bytes;
+            for (int key : Keys(residues))
+                AddPosting(key, id);
+        }
+        return file;
+    }
+
+    private void AddPosting(int key, int id)
+    {
+        int count = postingCounts[key];
+        int[] list = postings[key];
+        if (list == null)
+            list = postings[key] = new int[4];
+        else if (count > 0 && list[count - 1] == id)
+            return;
+        else if (count == list.length)
+            list = postings[key] = Arrays.copyOf(list, count * 2);
+        list[count] = id;
+        postingCounts[key] = count + 1;
+    }
+
+    // Distinct k-mer keys of a protein, sorted
+    private int[] Keys(byte[] residues)
+    {
+        int[] keys = new int[Math.max(0, residues.length - k + 1)];
+        int count = 0;
+        int modulus = postings.length;
+        int key = 0;
+        int valid = 0; // residues of the current k-mer in the reduced alphabet
+        for (byte residue : residues)
+        {
+            int group = residue >= 0 ? reduced[residue] : -1;
+            if (group < 0)
+            {
+                valid = 0;
+                key = 0;
+                continue;
+            }
+            key = (key * ALPHABET + group) % modulus;
+            if (++valid >= k)
+                keys[count++] = key;
+        }
+        Arrays.sort(keys, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++)
+            if (distinct == 0 || keys[distinct - 1] != keys[i])
+                keys[distinct++] = keys[i];
+        return Arrays.copyOf(keys, distinct);
+    }
+
+    // Genes sharing at least minHits distinct k-mers with the reference, indexed by file then sorted by position in the file
+    public synchronized int[][] Candidates(PeptideSequence reference)
+    {
+        int[] hits = new int[size];
+        for (int key : Keys(reference.bytes))
+            for (int p = 0; p < postingCounts[key]; p++)
+                hits[postings[key][p]]++;
+
+        int[] counts = new int[numFiles];
+        for (int id = 0; id < size; id++)
+            if (hits[id] >= minHits)
+                counts[files[id]]++;
+
+        int[][] candidates = new int[numFiles][];
+        for (int file = 0; file < numFiles; file++)
+            candidates[file] = new int[counts[file]];
+        Arrays.fill(counts, 0);
+        for (int id = 0; id < size; id++)
+            if (hits[id] >= minHits)
+                candidates[files[id]][counts[files[id]]++] = genes[id];
+        return candidates;
+    }
+
+    public synchronized int Size()
+    {
+        return size;
+    }
+
+    public synchronized int Files()
+    {
+        return numFiles;
+    }
+}
@@ -0,0 +1,92 @@
+package qut;
+
+import java.util.Arrays;
+
+// View of a region of a genome read along one strand, without copying it: on the minus strand the view reads the
+// genome backwards from its offset and complements each base on access.
+public class NucleotideRegion
+{
+    public final byte[] bytes;
+    public final int offset; // first base read, the last one of the region in the genome on the minus strand
+    public final int length;
+    public final int strand;
+    private int hash; // of the bases, 0 until first asked for, as String does
+
+    public NucleotideRegion(byte[] bytes, int offset, int length, int strand)
+    {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        this.strand = strand;
+    }
+
+    // Whole array read forwards
+    public NucleotideRegion(byte[] bytes)
+    {
+        this(bytes, 0, bytes.length, 1);
+    }
+
+    public byte At(int i)
+    {
+        return strand > 0 ? bytes[offset + i] : NucleotideSequence.Complement(bytes[offset - i]);
+    }
+
+    public byte[] Bytes()
+    {
+        if (strand > 0)
+            return Arrays.copyOfRange(bytes, offset, offset + length);
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++)
+            result[i] = At(i);
+        return result;
+    }
+
+    public byte[] Bytes(int start, int count)
+    {
+        byte[] result = new byte[count];
+        for (int i = 0; i < count; i++)
+            result[i] = At(start + i);
+        return result;
+    }
+
+    // Forward copy of the region, no longer holding on to the genome
+    public NucleotideRegion Detach()
+    {
+        return new NucleotideRegion(Bytes());
+    }
+
+    // Regions are equal when they read the same bases, whatever the genome, offset or strand
+    @Override
+    public boolean equals(Object object)
+    {
+        if (!(object instanceof NucleotideRegion))
+            return false;
+        NucleotideRegion other = (NucleotideRegion) object;
+        if (other.length != length)
+            return false;
+        for (int i = 0; i < length; i++)
+            if (At(i) != other.At(i))
+                return false;
+        return true;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int hash = this.hash;
+        if (hash == 0)
+        {
+            hash = 1;
+            for (int i = 0; i < length; i++)
+                hash = 31 * hash + At(i);
+            this.hash = hash;
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString()
+    {
+        return new String(Bytes());
+    }
+}
@@ -31,22 +31,22 @@ public class NucleotideSequence
         bytes = string.getBytes();
     }
     
-    public NucleotideSequence GetUpstreamRegion(Gene gene)
-    {               
+    public static byte Complement(byte base)
+    {
+        return base >= 0 && base < complement.length ? complement[base] : 0;
+    }
+
+    // Up to 250 bases upstream of a gene, read along its strand
+    public NucleotideRegion GetUpstreamRegion(Gene gene)
+    {
         int upStreamDistance = 250;
         if (gene.location <= upStreamDistance)
-           upStreamDistance = gene.location-1;
+            upStreamDistance = gene.location-1;
 
         if (gene.strand == 1)
-            return new NucleotideSequence(java.util.Arrays.copyOfRange(bytes, gene.location-upStreamDistance-1, gene.location-1));
+            return new NucleotideRegion(bytes, gene.location-upStreamDistance-1, upStreamDistance, 1);
         else
-        {
-            byte[] result = new byte[upStreamDistance];
-            int reverseStart = bytes.length - gene.location + upStreamDistance;
-            for (int i=0; i<upStreamDistance; i++)
-                result[i] = complement[bytes[reverseStart-i]];
-            return new NucleotideSequence(result);
-        }
+            return new NucleotideRegion(bytes, bytes.length - gene.location + upStreamDistance, upStreamDistance, -1);
     }    
     
     @Override
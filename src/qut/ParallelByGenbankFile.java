@@ -11,16 +11,8 @@ import java.util.concurrent.ConcurrentMap;
 public class ParallelByGenbankFile
 {
     private static ConcurrentMap<String, Sigma70Consensus> consensus = new ConcurrentHashMap<String, Sigma70Consensus>();
-    private static final Matrix BLOSUM_62 = BLOSUM62.Load();
-    private static byte[] complement = new byte['z'];
-
-    static
-    {
-        complement['C'] = 'G'; complement['c'] = 'g';
-        complement['G'] = 'C'; complement['g'] = 'c';
-        complement['T'] = 'A'; complement['t'] = 'a';
-        complement['A'] = 'T'; complement['a'] = 't';
-    }
+    private static final EncodedMatrix BLOSUM_62 = BLOSUM62.LoadEncoded();
+    private static final Sigma70Scanner sigma70_scanner = Sigma70Definition.getScanner(); // shared by the workers
 
                     
     private static List<Gene> ParseReferenceGenes(String referenceFile) throws FileNotFoundException, IOException
@@ -33,7 +25,9 @@ public class ParallelByGenbankFile
             if (name == null)
                 break;
             String sequence = reader.readLine();
-            referenceGenes.add(new Gene(name, 0, 0, sequence));
+            Gene referenceGene = new Gene(name, 0, 0, sequence);
+            referenceGene.profile = new QueryProfile(referenceGene.sequence.codes, BLOSUM_62);
+            referenceGenes.add(referenceGene);
             consensus.put(name, new Sigma70Consensus());
         }
         consensus.put("all", new Sigma70Consensus());
@@ -41,32 +35,16 @@ public class ParallelByGenbankFile
         return referenceGenes;
     }
 
-    private static boolean Homologous(PeptideSequence A, PeptideSequence B)
-    {
-        return SmithWatermanGotoh.align(new Sequence(A.toString()), new Sequence(B.toString()), BLOSUM_62, 10f, 0.5f).calculateScore() >= 60;
-    }
-
-    private static NucleotideSequence GetUpstreamRegion(NucleotideSequence dna, Gene gene)
+    private static boolean[] Homologous(List<Gene> genes, QueryProfile B)
     {
-        int upStreamDistance = 250;
-        if (gene.location < upStreamDistance)
-           upStreamDistance = gene.location-1;
-
-        if (gene.strand == 1)
-            return new NucleotideSequence(java.util.Arrays.copyOfRange(dna.bytes, gene.location-upStreamDistance-1, gene.location-1));
-        else
-        {
-            byte[] result = new byte[upStreamDistance];
-            int reverseStart = dna.bytes.length - gene.location + upStreamDistance;
-            for (int i=0; i<upStreamDistance; i++)
-                result[i] = complement[dna.bytes[reverseStart-i]];
-            return new NucleotideSequence(result);
-        }
+        return Homology.Homologous(genes, B);
     }
 
-    private static Match PredictPromoter(Series sigma70_pattern, NucleotideSequence upStreamRegion)
+    private static Promoter[] PredictPromoters(GenbankRecord record, List<NucleotideRegion> upStreamRegions)
     {
-        return BioPatterns.getBestMatch(sigma70_pattern, upStreamRegion.toString());
+        if (PromoterTrack.Enabled())
+            return PromoterTrack.Of(record, sigma70_scanner).Predict(upStreamRegions);
+        return PromoterCache.Predict(sigma70_scanner, upStreamRegions);
     }
 
     private static void ProcessDir(List<String> list, File dir)
@@ -88,11 +66,7 @@ public class ParallelByGenbankFile
 
     private static GenbankRecord Parse(String file) throws IOException
     {
-        GenbankRecord record = new GenbankRecord();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
-        record.Parse(reader);
-        reader.close();
-        return record;
+        return GenbankParser.Parse(file);
     }
 
     public ConcurrentMap<String, Sigma70Consensus> predict(String referenceFile, String dir, Integer numThreads) throws FileNotFoundException, IOException, InterruptedException {
@@ -135,7 +109,6 @@ public class ParallelByGenbankFile
         private List<String> filenames;
         private List<Gene> referenceGenes;
 
-        private Series sigma70_pattern = Sigma70Definition.getSeriesAll_Unanchored(0.7);
         public Worker(List<String> filenames, List<Gene> referenceGenes) {
             this.filenames = filenames;
             this.referenceGenes = referenceGenes;
@@ -154,14 +127,15 @@ public class ParallelByGenbankFile
 
                 for (Gene referenceGene : referenceGenes) {
                     System.out.println(threadName + referenceGene.name);
-                    for (Gene gene : record.genes)
-                        if (Homologous(gene.sequence, referenceGene.sequence)) {
-                            NucleotideSequence upStreamRegion = GetUpstreamRegion(record.nucleotides, gene);
-                            Match prediction = PredictPromoter(sigma70_pattern, upStreamRegion);
-                            if (prediction != null) {
-                                consensus.get(referenceGene.name).addMatch(prediction);
-                                consensus.get("all").addMatch(prediction);
-                            }
+                    boolean[] homologous = Homologous(record.genes, referenceGene.profile);
+                    List<NucleotideRegion> upStreamRegions = new ArrayList<>();
+                    for (int g = 0; g < homologous.length; g++)
+                        if (homologous[g])
+                            upStreamRegions.add(record.nucleotides.GetUpstreamRegion(record.genes.get(g)));
+                    for (Promoter prediction : PredictPromoters(record, upStreamRegions))
+                        if (prediction != null) {
+                            consensus.get(referenceGene.name).addMatch(prediction);
+                            consensus.get("all").addMatch(prediction);
                         }
                 }
             }
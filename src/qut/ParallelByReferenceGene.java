@@ -1,15 +1,11 @@
 package qut;
 
-import edu.au.jacobi.pattern.Match;
-import edu.au.jacobi.pattern.Series;
 import jaligner.BLOSUM62;
-import jaligner.Sequence;
-import jaligner.SmithWatermanGotoh;
-import jaligner.matrix.Matrix;
+import jaligner.QueryProfile;
+import jaligner.matrix.EncodedMatrix;
 
 import java.io.*;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
@@ -17,20 +13,11 @@ import java.util.concurrent.ConcurrentMap;
 
 public class ParallelByReferenceGene
 {
-    private static ConcurrentMap<String, Sigma70Consensus> consensus = new ConcurrentHashMap<String, Sigma70Consensus>();
-    private static final Matrix BLOSUM_62 = BLOSUM62.Load();
-    private static byte[] complement = new byte['z'];
-
-    static
-    {
-        complement['C'] = 'G'; complement['c'] = 'g';
-        complement['G'] = 'C'; complement['g'] = 'c';
-        complement['T'] = 'A'; complement['t'] = 'a';
-        complement['A'] = 'T'; complement['a'] = 't';
-    }
+    private static final EncodedMatrix BLOSUM_62 = BLOSUM62.LoadEncoded();
+    private static final Sigma70Scanner sigma70_scanner = Sigma70Definition.getScanner(); // shared by the workers
 
                     
-    private static List<Gene> ParseReferenceGenes(String referenceFile) throws FileNotFoundException, IOException
+    private static List<Gene> ParseReferenceGenes(String referenceFile, ConcurrentMap<String, Sigma70Consensus> consensus) throws FileNotFoundException, IOException
     {
         BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(referenceFile)));
         List<Gene> referenceGenes = new ArrayList<>();
@@ -40,7 +27,9 @@ public class ParallelByReferenceGene
             if (name == null)
                 break;
             String sequence = reader.readLine();
-            referenceGenes.add(new Gene(name, 0, 0, sequence));
+            Gene referenceGene = new Gene(name, 0, 0, sequence);
+            referenceGene.profile = new QueryProfile(referenceGene.sequence.codes, BLOSUM_62);
+            referenceGenes.add(referenceGene);
             consensus.put(name, new Sigma70Consensus());
         }
         consensus.put("all", new Sigma70Consensus());
@@ -48,32 +37,16 @@ public class ParallelByReferenceGene
         return referenceGenes;
     }
 
-    private static boolean Homologous(PeptideSequence A, PeptideSequence B)
+    private static boolean[] Homologous(List<Gene> genes, QueryProfile B)
     {
-        return SmithWatermanGotoh.align(new Sequence(A.toString()), new Sequence(B.toString()), BLOSUM_62, 10f, 0.5f).calculateScore() >= 60;
+        return Homology.Homologous(genes, B);
     }
 
-    private static NucleotideSequence GetUpstreamRegion(NucleotideSequence dna, Gene gene)
+    private static Promoter[] PredictPromoters(GenbankRecord record, List<NucleotideRegion> upStreamRegions)
     {
-        int upStreamDistance = 250;
-        if (gene.location < upStreamDistance)
-           upStreamDistance = gene.location-1;
-
-        if (gene.strand == 1)
-            return new NucleotideSequence(Arrays.copyOfRange(dna.bytes, gene.location-upStreamDistance-1, gene.location-1));
-        else
-        {
-            byte[] result = new byte[upStreamDistance];
-            int reverseStart = dna.bytes.length - gene.location + upStreamDistance;
-            for (int i=0; i<upStreamDistance; i++)
-                result[i] = complement[dna.bytes[reverseStart-i]];
-            return new NucleotideSequence(result);
-        }
-    }
-
-    private static Match PredictPromoter(Series sigma70_pattern, NucleotideSequence upStreamRegion)
-    {
-        return BioPatterns.getBestMatch(sigma70_pattern, upStreamRegion.toString());
+        if (PromoterTrack.Enabled())
+            return PromoterTrack.Of(record, sigma70_scanner).Predict(upStreamRegions);
+        return PromoterCache.Predict(sigma70_scanner, upStreamRegions);
     }
 
     private static void ProcessDir(List<String> list, File dir)
@@ -86,7 +59,7 @@ public class ParallelByReferenceGene
                     list.add(file.getPath());
     }
 
-    private static List<String> ListGenbankFiles(String dir)
+    static List<String> ListGenbankFiles(String dir)
     {
         List<String> list = new ArrayList<>();
         ProcessDir(list, new File(dir));
@@ -95,36 +68,54 @@ public class ParallelByReferenceGene
 
     private static GenbankRecord Parse(String file) throws IOException
     {
-        GenbankRecord record = new GenbankRecord();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
-        record.Parse(reader);
-        reader.close();
-        return record;
+        return GenbankParser.Parse(file);
     }
 
     public ConcurrentMap<String, Sigma70Consensus> predict(String referenceFile, String dir, int numThreads) throws FileNotFoundException, IOException, InterruptedException {
-        List<Gene> referenceGenes = Collections.unmodifiableList(ParseReferenceGenes(referenceFile));
+        return predict(referenceFile, ParseRecords(dir, null), null, numThreads);
+    }
 
+    // Parses all the GenBank files of a directory, indexing their genes when an index is given
+    public static List<GenbankRecord> ParseRecords(String dir, KmerIndex index) {
         List<String> genbankFiles = ListGenbankFiles(dir);
 
         List<GenbankRecord> records = new ArrayList<>(); // UNSAFE?
         for (String filename : genbankFiles) {
             try {
-                records.add(Parse(filename));
+                GenbankRecord record = Parse(filename);
+                records.add(record);
+                if (index != null)
+                    index.Add(record.genes);
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
+        return records;
+    }
+
+    // Only aligns the genes the index selects as candidates, or all of them without an index.
+    // The records and the index can be reused with any number of reference lists: each call returns the consensus of
+    // its own list, and the homology decisions of its reference genes are dropped once it is done.
+    public ConcurrentMap<String, Sigma70Consensus> predict(String referenceFile, List<GenbankRecord> records, KmerIndex index, int numThreads) throws FileNotFoundException, IOException, InterruptedException {
+        ConcurrentMap<String, Sigma70Consensus> consensus = new ConcurrentHashMap<>();
+        List<Gene> referenceGenes = Collections.unmodifiableList(ParseReferenceGenes(referenceFile, consensus));
+
+        List<int[][]> candidates = null;
+        if (index != null) {
+            candidates = new ArrayList<>();
+            for (Gene referenceGene : referenceGenes)
+                candidates.add(index.Candidates(referenceGene.sequence));
+        }
 
         List<Worker> workers = new ArrayList<>();
 
-        int numFiles = genbankFiles.size();
+        int numFiles = records.size();
         int numReferenceGenes = referenceGenes.size();
         int numJobs = numFiles * numReferenceGenes;
 
         Worker.setConstants(numThreads, numReferenceGenes, numJobs);
         for (int i = 0; i < numThreads; i++) {
-            Worker worker = new Worker(referenceGenes, records, i);
+            Worker worker = new Worker(referenceGenes, records, candidates, consensus, i);
             workers.add(worker);
             worker.start();
         }
@@ -133,6 +124,8 @@ public class ParallelByReferenceGene
             worker.join();
         }
 
+        for (Gene referenceGene : referenceGenes)
+            Homology.Forget(referenceGene.profile);
         return consensus;
     }
 
@@ -142,12 +135,15 @@ public class ParallelByReferenceGene
         private static int numReferenceGenes;
         private List<Gene> referenceGenes;
         private List<GenbankRecord> records;
+        private List<int[][]> candidates;
+        private ConcurrentMap<String, Sigma70Consensus> consensus;
         private int threadsIndex;
 
-        private Series sigma70_pattern = Sigma70Definition.getSeriesAll_Unanchored(0.7);
-        public Worker(List<Gene> referenceGenes, List<GenbankRecord> records, int threadsIndex) {
+        public Worker(List<Gene> referenceGenes, List<GenbankRecord> records, List<int[][]> candidates, ConcurrentMap<String, Sigma70Consensus> consensus, int threadsIndex) {
             this.referenceGenes = referenceGenes;
             this.records = records;
+            this.candidates = candidates;
+            this.consensus = consensus;
             this.threadsIndex = threadsIndex;
         }
         public static void setConstants(int numThreads, int numReferenceGenes, int numJobs) {
@@ -184,14 +180,22 @@ public class ParallelByReferenceGene
 
                 System.out.println(threadName + "index: " + i + " file: " + posFile + " gene: " + posReferenceGene + " (" + referenceGene.name + ")");
 
-                for (Gene gene : record.genes) {
-                    if (Homologous(gene.sequence, referenceGene.sequence)) {
-                        NucleotideSequence upStreamRegion = GetUpstreamRegion(record.nucleotides, gene);
-                        Match prediction = PredictPromoter(sigma70_pattern, upStreamRegion);
-                        if (prediction != null) {
-                            consensus.get(referenceGene.name).addMatch(prediction);
-                            consensus.get("all").addMatch(prediction);
-                        }
+                int[] selected = candidates == null ? null : candidates.get(posReferenceGene)[posFile];
+                List<Gene> genes = record.genes;
+                if (selected != null) {
+                    genes = new ArrayList<>(selected.length);
+                    for (int g : selected)
+                        genes.add(record.genes.get(g));
+                }
+                boolean[] homologous = Homologous(genes, referenceGene.profile);
+                List<NucleotideRegion> upStreamRegions = new ArrayList<>();
+                for (int g = 0; g < homologous.length; g++)
+                    if (homologous[g])
+                        upStreamRegions.add(record.nucleotides.GetUpstreamRegion(genes.get(g)));
+                for (Promoter prediction : PredictPromoters(record, upStreamRegions)) {
+                    if (prediction != null) {
+                        consensus.get(referenceGene.name).addMatch(prediction);
+                        consensus.get("all").addMatch(prediction);
                     }
                 }
             }
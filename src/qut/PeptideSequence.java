@@ -8,8 +8,10 @@ import java.io.*;
 public class PeptideSequence 
 {
     public byte[] bytes;
+    public byte[] codes; // residues encoded once at parse time for the aligner
+    public long key; // content hash, the same in every run, for the score cache
 
-    private static final Matrix BLOSUM_62 = BLOSUM62.Load();
+    private static final EncodedMatrix BLOSUM_62 = BLOSUM62.LoadEncoded();
 
     public PeptideSequence()
     {
@@ -17,12 +19,19 @@ public class PeptideSequence
     
     public PeptideSequence(String string)
     {
-        bytes = string.getBytes();
+        this(string.getBytes());
+    }
+
+    public PeptideSequence(byte[] residues)
+    {
+        bytes = residues;
+        codes = BLOSUM_62.encode(bytes);
+        key = ScoreCache.Hash(bytes);
     }
     
     public static double Similarity(PeptideSequence A, PeptideSequence B)
     {  
-        return SmithWatermanGotoh.align(new Sequence(A.toString()), new Sequence(B.toString()), BLOSUM_62, 10f, 0.5f).calculateScore();       
+        return SmithWatermanGotoh.score(A.codes, B.codes, BLOSUM_62, 10f, 0.5f);
     }
     
     @Override
@@ -0,0 +1,32 @@
+package qut;
+
+import edu.au.jacobi.pattern.Match;
+
+// What the consensus needs of a sigma-70 match, without the sequence and feature lists a Match keeps alive
+public class Promoter
+{
+    public final byte[] minus35;
+    public final int gap;
+    public final byte[] minus10;
+    public final double similarity;
+
+    public Promoter(byte[] minus35, int gap, byte[] minus10, double similarity)
+    {
+        this.minus35 = minus35;
+        this.gap = gap;
+        this.minus10 = minus10;
+        this.similarity = similarity;
+    }
+
+    public static Promoter Of(Match match)
+    {
+        return new Promoter(match.getSubMatch(0).letters().getBytes(), match.getSubMatch(1).calcLength(),
+                match.getSubMatch(2).letters().getBytes(), match.similarity());
+    }
+
+    @Override
+    public String toString()
+    {
+        return "-35: " + new String(minus35) + " gap: " + gap + " -10: " + new String(minus10) + " (" + String.format("%.3f", similarity) + ")";
+    }
+}
@@ -0,0 +1,162 @@
+package qut;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Best sigma-70 match of each upstream region, shared by all the engines: a gene homologous to several reference
+// genes, or a region repeated across genomes, is only searched once. Regions are looked up by the bases they read
+// along the gene, whatever their strand or genome, and kept as detached copies so the cache never holds on to a
+// genome. Each scanner signature has its own stripes, so a scanner with another definition or threshold never reads
+// the matches of another. The least recently used regions are evicted beyond the capacity of each signature, which is
+// split over independently locked stripes so the workers rarely wait for each other.
+public class PromoterCache
+{
+    public static final String CAPACITY_PROPERTY = "qut.promoters";
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private static final int STRIPES = 16;
+    private static final Promoter NONE = new Promoter(new byte[0], 0, new byte[0], 0); // regions without a match
+
+    private static final int STRIPE_CAPACITY = Math.max(1,
+            Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY) / STRIPES);
+    private static final ConcurrentMap<Long, Stripe[]> signatures = new ConcurrentHashMap<>(); // stripes by scanner
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+
+    private static class Stripe extends LinkedHashMap<NucleotideRegion, Promoter>
+    {
+        private static final long serialVersionUID = 6071345188324509741L;
+
+        private final int capacity;
+
+        Stripe(int capacity)
+        {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<NucleotideRegion, Promoter> eldest)
+        {
+            if (size() <= capacity)
+                return false;
+            evictions.increment();
+            return true;
+        }
+    }
+
+    // Best match of the scanner in the region, null if none reaches its threshold
+    public static Promoter Predict(Sigma70Scanner scanner, NucleotideRegion region)
+    {
+        Stripe stripe = Stripe(Stripes(scanner), region);
+        Promoter promoter;
+        synchronized (stripe)
+        {
+            promoter = stripe.get(region);
+        }
+        if (promoter != null)
+        {
+            hits.increment();
+            return promoter == NONE ? null : promoter;
+        }
+        // Searched outside the lock: two workers meeting the same new region both search it, with the same result
+        misses.increment();
+        promoter = scanner.Scan(region);
+        if (promoter == null)
+            promoter = NONE;
+        synchronized (stripe)
+        {
+            stripe.put(region.Detach(), promoter);
+        }
+        return promoter == NONE ? null : promoter;
+    }
+
+    // Best matches of many regions, the regions missing from the cache being scanned together in one batch
+    public static Promoter[] Predict(Sigma70Scanner scanner, List<NucleotideRegion> regions)
+    {
+        Stripe[] stripes = Stripes(scanner);
+        Promoter[] promoters = new Promoter[regions.size()];
+        int[] missing = new int[promoters.length];
+        List<NucleotideRegion> batch = new ArrayList<>();
+        for (int r = 0; r < promoters.length; r++)
+        {
+            Stripe stripe = Stripe(stripes, regions.get(r));
+            synchronized (stripe)
+            {
+                promoters[r] = stripe.get(regions.get(r));
+            }
+            if (promoters[r] == null)
+            {
+                missing[batch.size()] = r;
+                batch.add(regions.get(r));
+            }
+            else if (promoters[r] == NONE)
+                promoters[r] = null;
+        }
+        hits.add(promoters.length - batch.size());
+        misses.add(batch.size());
+        Promoter[] scanned = scanner.Scan(batch);
+        for (int b = 0; b < scanned.length; b++)
+        {
+            NucleotideRegion key = batch.get(b).Detach();
+            Stripe stripe = Stripe(stripes, key);
+            synchronized (stripe)
+            {
+                stripe.put(key, scanned[b] == null ? NONE : scanned[b]);
+            }
+            promoters[missing[b]] = scanned[b];
+        }
+        return promoters;
+    }
+
+    private static Stripe[] Stripes(Sigma70Scanner scanner)
+    {
+        return signatures.computeIfAbsent(scanner.Signature(), signature -> NewStripes());
+    }
+
+    private static Stripe[] NewStripes()
+    {
+        Stripe[] stripes = new Stripe[STRIPES];
+        for (int s = 0; s < STRIPES; s++)
+            stripes[s] = new Stripe(STRIPE_CAPACITY);
+        return stripes;
+    }
+
+    private static Stripe Stripe(Stripe[] stripes, NucleotideRegion key)
+    {
+        return stripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    public static long Hits()
+    {
+        return hits.sum();
+    }
+
+    public static long Misses()
+    {
+        return misses.sum();
+    }
+
+    public static void Clear()
+    {
+        signatures.clear();
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+
+    public static String Report()
+    {
+        long found = Hits();
+        long total = found + Misses();
+        return "Promoter cache: " + found + " hits of " + total + " regions ("
+                + String.format("%.1f", total == 0 ? 0.0 : 100.0 * found / total) + "%), " + evictions.sum()
+                + " evicted";
+    }
+}
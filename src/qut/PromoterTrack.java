@@ -0,0 +1,282 @@
+package qut;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
+
+// Best sigma-70 match ending at each position of both strands of a genome, scanned once in parallel chunks instead
+// of window by window for every homologous gene. An upstream region is then answered by a range maximum over the
+// ends of its window, giving the very match Scan would find in it: the float scores only select the candidates,
+// whose similarities are recomputed exactly, and the few ends near the start of the window, whose longer matches
+// may start before it, are checked one combination at a time. Off unless enabled; tracks can be saved in a
+// directory, by genome and scanner, so later runs and new reference genes need no scan at all.
+public class PromoterTrack
+{
+    public static final String PROPERTY = "qut.track";
+    public static final String DIRECTORY_PROPERTY = "qut.track.dir";
+
+    private static final int MAGIC = 0x51505431; // "QPT1"
+    private static final int HEADER = 16; // magic, genome length, scanner signature
+    private static final int CHUNK = 1 << 16;
+    private static final int BLOCK = 64; // ends summarised by each block maximum
+
+    private static volatile boolean enabled = Boolean.getBoolean(PROPERTY);
+    private static final LongAdder built = new LongAdder();
+    private static final LongAdder loaded = new LongAdder();
+    private static final LongAdder buildNanos = new LongAdder();
+    private static final LongAdder windows = new LongAdder();
+
+    private final Sigma70Scanner scanner;
+    private final long signature;
+    private final byte[] genome;
+    private final NucleotideRegion[] strands = new NucleotideRegion[2]; // plus, then minus strand read as regions
+    private final float[][] scores = new float[2][]; // by strand and end of the match
+    private final byte[][] gaps = new byte[2][];
+    private final float[][] blocks = new float[2][];
+
+    private PromoterTrack(Sigma70Scanner scanner, long signature, byte[] genome)
+    {
+        this.scanner = scanner;
+        this.signature = signature;
+        this.genome = genome;
+        strands[0] = new NucleotideRegion(genome, 0, genome.length, 1);
+        strands[1] = new NucleotideRegion(genome, genome.length - 1, genome.length, -1);
+        for (int k = 0; k < 2; k++)
+        {
+            scores[k] = new float[genome.length + 1];
+            gaps[k] = new byte[genome.length + 1];
+        }
+    }
+
+    public static boolean Enabled()
+    {
+        return enabled;
+    }
+
+    public static void SetEnabled(boolean enable)
+    {
+        enabled = enable;
+    }
+
+    // Track of a record, built, or read from the track directory, the first time it is asked for
+    public static PromoterTrack Of(GenbankRecord record, Sigma70Scanner scanner)
+    {
+        long signature = scanner.Signature();
+        synchronized (record)
+        {
+            if (record.track == null || record.track.signature != signature
+                    || record.track.genome != record.nucleotides.bytes)
+                record.track = Load(record.nucleotides.bytes, scanner, signature);
+            return record.track;
+        }
+    }
+
+    private static PromoterTrack Load(byte[] genome, Sigma70Scanner scanner, long signature)
+    {
+        String directory = System.getProperty(DIRECTORY_PROPERTY);
+        File file = directory == null ? null : new File(directory, Long.toHexString(ScoreCache.Mix(
+                ScoreCache.Hash(genome) ^ signature)) + ".track");
+        PromoterTrack track = new PromoterTrack(scanner, signature, genome);
+        try
+        {
+            if (file != null && file.isFile() && track.Read(file))
+            {
+                loaded.increment();
+                return track;
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("Promoter track " + file + " unreadable, scanning again: " + e.getMessage());
+        }
+        track.Build();
+        if (file != null)
+        {
+            try
+            {
+                track.Write(file);
+            }
+            catch (IOException e)
+            {
+                System.err.println("Promoter track " + file + " not saved: " + e.getMessage());
+            }
+        }
+        return track;
+    }
+
+    // Scans both strands, each chunk of ends in its own task
+    private void Build()
+    {
+        long startTime = System.nanoTime();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int k = 0; k < 2; k++)
+            for (int from = 0; from <= genome.length; from += CHUNK)
+            {
+                int strand = k;
+                int start = from;
+                int end = Math.min(genome.length + 1, from + CHUNK);
+                tasks.add(ForkJoinTask.adapt(() -> scanner.Track(strands[strand], start, end, scores[strand],
+                        gaps[strand])));
+            }
+        ForkJoinTask.invokeAll(tasks);
+        Summarise();
+        buildNanos.add(System.nanoTime() - startTime);
+        built.increment();
+    }
+
+    private void Summarise()
+    {
+        for (int k = 0; k < 2; k++)
+        {
+            blocks[k] = new float[(scores[k].length + BLOCK - 1) / BLOCK];
+            for (int b = 0; b < blocks[k].length; b++)
+                blocks[k][b] = Max(scores[k], b * BLOCK, Math.min(scores[k].length, (b + 1) * BLOCK));
+        }
+    }
+
+    private static float Max(float[] values, int from, int to)
+    {
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = from; i < to; i++)
+            max = Math.max(max, values[i]);
+        return max;
+    }
+
+    // Highest score of the ends in [from, to) of a strand
+    private float RangeMax(int k, int from, int to)
+    {
+        int firstBlock = (from + BLOCK - 1) / BLOCK;
+        int lastBlock = to / BLOCK;
+        if (firstBlock >= lastBlock)
+            return Max(scores[k], from, to);
+        float max = Math.max(Max(scores[k], from, firstBlock * BLOCK), Max(scores[k], lastBlock * BLOCK, to));
+        for (int b = firstBlock; b < lastBlock; b++)
+            max = Math.max(max, blocks[k][b]);
+        return max;
+    }
+
+    // Best match in a region of the genome, the same as the scanner finds in it, null if none reaches its threshold
+    public Promoter Predict(NucleotideRegion region)
+    {
+        if (region.bytes != genome)
+            return scanner.Scan(region);
+        windows.increment();
+        int k = region.strand > 0 ? 0 : 1;
+        int from = k == 0 ? region.offset : genome.length - 1 - region.offset; // window start along the strand
+        int to = from + region.length;
+
+        double best = Double.NEGATIVE_INFINITY;
+        int bestStart = -1;
+        int bestGap = 0;
+        // Matches with these ends could start before the window
+        int clear = Math.min(to + 1, from + scanner.Span(scanner.MaxGap()));
+        for (int end = from + scanner.Span(scanner.MinGap()); end < clear; end++)
+            for (int gap = scanner.MaxGap(); gap >= scanner.MinGap(); gap--)
+            {
+                int start = end - scanner.Span(gap);
+                if (start < from)
+                    continue;
+                double similarity = scanner.Similarity(strands[k], start, gap);
+                if (Better(similarity, start, gap, best, bestStart, bestGap))
+                {
+                    best = similarity;
+                    bestStart = start;
+                    bestGap = gap;
+                }
+            }
+        // The best of the others has the highest float score, and only those ends are recomputed
+        float top = RangeMax(k, clear, to + 1);
+        if (top != Float.NEGATIVE_INFINITY)
+            for (int end = clear; end <= to; end++)
+                if (scores[k][end] == top)
+                {
+                    int gap = gaps[k][end];
+                    int start = end - scanner.Span(gap);
+                    double similarity = scanner.Similarity(strands[k], start, gap);
+                    if (Better(similarity, start, gap, best, bestStart, bestGap))
+                    {
+                        best = similarity;
+                        bestStart = start;
+                        bestGap = gap;
+                    }
+                }
+        return bestStart < 0 ? null : scanner.Match(strands[k], bestStart, bestGap, best);
+    }
+
+    public Promoter[] Predict(List<NucleotideRegion> regions)
+    {
+        Promoter[] promoters = new Promoter[regions.size()];
+        for (int r = 0; r < promoters.length; r++)
+            promoters[r] = Predict(regions.get(r));
+        return promoters;
+    }
+
+    // Search order of Scan: the highest similarity, then the first start, then the shortest spacer
+    private static boolean Better(double similarity, int start, int gap, double best, int bestStart, int bestGap)
+    {
+        if (similarity != best)
+            return similarity > best;
+        return start < bestStart || start == bestStart && gap < bestGap;
+    }
+
+    private boolean Read(File file) throws IOException
+    {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r"))
+        {
+            if (input.length() != Size())
+                return false;
+            MappedByteBuffer buffer = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, Size());
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != genome.length || buffer.getLong(8) != signature)
+                return false;
+            buffer.position(HEADER);
+            for (int k = 0; k < 2; k++)
+            {
+                buffer.asFloatBuffer().get(scores[k]);
+                buffer.position(buffer.position() + scores[k].length * Float.BYTES);
+                buffer.get(gaps[k]);
+            }
+        }
+        Summarise();
+        return true;
+    }
+
+    // Written aside and moved in place, so other runs never read a partial track
+    private void Write(File file) throws IOException
+    {
+        File temporary = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile output = new RandomAccessFile(temporary, "rw"))
+        {
+            output.setLength(Size());
+            MappedByteBuffer buffer = output.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Size());
+            buffer.putInt(MAGIC).putInt(genome.length).putLong(signature);
+            for (int k = 0; k < 2; k++)
+            {
+                buffer.asFloatBuffer().put(scores[k]);
+                buffer.position(buffer.position() + scores[k].length * Float.BYTES);
+                buffer.put(gaps[k]);
+            }
+            buffer.force();
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private long Size()
+    {
+        return HEADER + 2L * (genome.length + 1) * (Float.BYTES + 1);
+    }
+
+    public static String Report()
+    {
+        return "Promoter track: " + built.sum() + " built in " + String.format("%.0f", buildNanos.sum() / 1e6)
+                + "ms, " + loaded.sum() + " loaded, " + windows.sum() + " windows answered";
+    }
+}
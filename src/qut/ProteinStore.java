@@ -0,0 +1,59 @@
+package qut;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Content-hashed store of the parsed peptides: byte-identical translations, common across related genomes, share one
+// PeptideSequence, so the homology check of a peptide against a reference gene runs once for all its occurrences
+public class ProteinStore
+{
+    private static final ConcurrentMap<ByteBuffer, PeptideSequence> peptides = new ConcurrentHashMap<>();
+    private static final LongAdder occurrences = new LongAdder();
+
+    public static PeptideSequence Intern(String translation)
+    {
+        occurrences.increment();
+        PeptideSequence peptide = new PeptideSequence(translation);
+        PeptideSequence stored = peptides.putIfAbsent(ByteBuffer.wrap(peptide.bytes), peptide);
+        return stored == null ? peptide : stored;
+    }
+
+    // Peptide of the first residues of a buffer, which is only copied when the translation is new
+    public static PeptideSequence Intern(byte[] residues, int length)
+    {
+        occurrences.increment();
+        PeptideSequence stored = peptides.get(ByteBuffer.wrap(residues, 0, length));
+        if (stored != null)
+            return stored;
+        PeptideSequence peptide = new PeptideSequence(Arrays.copyOf(residues, length));
+        stored = peptides.putIfAbsent(ByteBuffer.wrap(peptide.bytes), peptide);
+        return stored == null ? peptide : stored;
+    }
+
+    public static long Occurrences()
+    {
+        return occurrences.sum();
+    }
+
+    public static int Unique()
+    {
+        return peptides.size();
+    }
+
+    public static void Clear()
+    {
+        peptides.clear();
+        occurrences.reset();
+    }
+
+    public static String Report()
+    {
+        long total = Occurrences();
+        int unique = Unique();
+        return "Protein store: " + unique + " unique of " + total + " peptides (dedup ratio "
+                + String.format("%.2f", unique == 0 ? 1.0 : (double) total / unique) + ")";
+    }
+}
@@ -1,14 +1,51 @@
 package qut;
 
+import edu.au.jacobi.pattern.Match;
+import edu.au.jacobi.pattern.Series;
+import jaligner.Alignment;
+import jaligner.BLOSUM62;
+import jaligner.QueryProfile;
+import jaligner.Sequence;
+import jaligner.SmithWatermanGotoh;
+import jaligner.matrix.EncodedMatrix;
+import jaligner.matrix.Matrix;
+
+import java.io.BufferedReader;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Random;
+import java.util.stream.Collectors;
 
 public class Run {
 
+    // Runs the compare passes before the timed run, which is otherwise the same as the baseline one
+    public static final String VERIFY_PROPERTY = "qut.verify";
+
     public static void main(String[] args) throws FileNotFoundException, IOException, InterruptedException {
+        if (Boolean.getBoolean(VERIFY_PROPERTY)) {
+            compareEngines("referenceGenes.list");
+            compareWavefront("referenceGenes.list");
+            compareIndex("referenceGenes.list", "Ecoli");
+            if (Homology.GetSeedMode() == Homology.SEEDS_FAST)
+                compareSeeds("referenceGenes.list", "Ecoli");
+            compareScanner("Ecoli");
+            compareParsers("Ecoli");
+            compareStream("referenceGenes.list", "Ecoli");
+
+            // The reports below are about the timed run only, not the compare passes
+            Homology.ResetCounters();
+            ProteinStore.Clear();
+        }
+
         long startTime = System.currentTimeMillis();
 
         Map<String, Sigma70Consensus> consensus = Sequential.run("referenceGenes.list", "Ecoli"); // Elapsed:158226ms
@@ -19,9 +56,18 @@ public class Run {
 //        ParallelByReferenceGene predictor = new ParallelByReferenceGene(); // Elapsed:44929ms
 //        Map<String, Sigma70Consensus> consensus = predictor.predict("referenceGenes.list", "Ecoli", 9);
 
+//        KmerIndex index = new KmerIndex();
+//        List<GenbankRecord> records = ParallelByReferenceGene.ParseRecords("Ecoli", index);
+//        ParallelByReferenceGene predictor = new ParallelByReferenceGene();
+//        Map<String, Sigma70Consensus> consensus = predictor.predict("referenceGenes.list", records, index, 9);
+
         long endTime = System.currentTimeMillis();
         long duration = endTime - startTime;
         compareByString(consensus);
+        System.out.println(Homology.Report());
+        System.out.println(PromoterCache.Report());
+        if (PromoterTrack.Enabled())
+            System.out.println(PromoterTrack.Report());
         System.out.println("Elapsed:" + duration + "ms" );
 
     }
@@ -40,6 +86,9 @@ public class Run {
     }
 
 
+    // Residues of the random peptides of the compare methods
+    private static final String RESIDUES = "ARNDCQEGHILKMFPSTWYV";
+
     private static void printer(Map<String, Sigma70Consensus> consensus) {
         for (Map.Entry<String, Sigma70Consensus> entry : consensus.entrySet())
             System.out.println(entry.getKey() + " " + entry.getValue());
@@ -59,6 +108,386 @@ public class Run {
             }
         }
     }
+    // Reports how many of the homologous pairs found by aligning all pairs are candidates of the k-mer index
+    private static void compareIndex(String referenceFile, String dir) throws IOException {
+        KmerIndex index = new KmerIndex();
+        List<GenbankRecord> records = ParallelByReferenceGene.ParseRecords(dir, index);
+        EncodedMatrix blosum62 = BLOSUM62.LoadEncoded();
+
+        long pairs = 0, candidatePairs = 0, homologous = 0, found = 0;
+        BufferedReader reader = new BufferedReader(new FileReader(referenceFile));
+        while (reader.readLine() != null) {
+            PeptideSequence reference = new PeptideSequence(reader.readLine());
+            QueryProfile profile = new QueryProfile(reference.codes, blosum62);
+            int[][] candidates = index.Candidates(reference);
+            for (int file = 0; file < records.size(); file++) {
+                List<Gene> genes = records.get(file).genes;
+                boolean[] candidate = new boolean[genes.size()];
+                for (int g : candidates[file])
+                    candidate[g] = true;
+                candidatePairs += candidates[file].length;
+                pairs += genes.size();
+                for (int g = 0; g < genes.size(); g++) {
+                    if (SmithWatermanGotoh.reaches(genes.get(g).sequence.codes, profile,
+                            Homology.OPEN_GAP, Homology.EXTEND_GAP, Homology.THRESHOLD)) {
+                        homologous++;
+                        if (candidate[g])
+                            found++;
+                    }
+                }
+            }
+        }
+        reader.close();
+        System.out.println("Index recall: " + found + " of " + homologous + " homologous pairs ("
+                + String.format("%.2f", homologous == 0 ? 100.0 : 100.0 * found / homologous) + "%), aligning "
+                + candidatePairs + " of " + pairs + " pairs");
+    }
+
+    // Reports how many of the homologous pairs found by aligning all pairs the fast seed stage loses
+    private static void compareSeeds(String referenceFile, String dir) throws IOException {
+        List<GenbankRecord> records = ParallelByReferenceGene.ParseRecords(dir, null);
+        EncodedMatrix blosum62 = BLOSUM62.LoadEncoded();
+
+        long pairs = 0, aligned = 0, homologous = 0, lost = 0;
+        BufferedReader reader = new BufferedReader(new FileReader(referenceFile));
+        while (reader.readLine() != null) {
+            QueryProfile profile = new QueryProfile(new PeptideSequence(reader.readLine()).codes, blosum62);
+            for (GenbankRecord record : records) {
+                for (Gene gene : record.genes) {
+                    boolean expected = SmithWatermanGotoh.reaches(gene.sequence.codes, profile,
+                            Homology.OPEN_GAP, Homology.EXTEND_GAP, Homology.THRESHOLD);
+                    Boolean decision = Homology.SeedDecision(gene.sequence, profile);
+                    pairs++;
+                    if (decision == null)
+                        aligned++;
+                    if (expected) {
+                        homologous++;
+                        if (Boolean.FALSE.equals(decision))
+                            lost++;
+                    }
+                }
+            }
+        }
+        reader.close();
+        System.out.println("Seed sensitivity loss: " + lost + " of " + homologous + " homologous pairs ("
+                + String.format("%.2f", homologous == 0 ? 0.0 : 100.0 * lost / homologous) + "%), aligning "
+                + aligned + " of " + pairs + " pairs");
+    }
+
+    // Checks the memory-mapped parser against the line parser on every GenBank file, with the time each takes and the
+    // bytes it allocates over a second pass, once both are compiled
+    private static void compareParsers(String dir) throws IOException {
+        List<String> files = ParallelByReferenceGene.ListGenbankFiles(dir);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long lineNanos = 0, lineBytes = 0, mappedNanos = 0, mappedBytes = 0;
+        int failed = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            lineNanos = lineBytes = mappedNanos = mappedBytes = failed = 0;
+            for (String file : files) {
+                long bytes = threads.getCurrentThreadAllocatedBytes();
+                long time = System.nanoTime();
+                GenbankRecord received = GenbankParser.Parse(file);
+                mappedNanos += System.nanoTime() - time;
+                mappedBytes += threads.getCurrentThreadAllocatedBytes() - bytes;
+
+                bytes = threads.getCurrentThreadAllocatedBytes();
+                time = System.nanoTime();
+                GenbankRecord expected = new GenbankRecord();
+                BufferedReader reader = new BufferedReader(new FileReader(file));
+                expected.Parse(reader);
+                reader.close();
+                lineNanos += System.nanoTime() - time;
+                lineBytes += threads.getCurrentThreadAllocatedBytes() - bytes;
+
+                if (!sameRecord(expected, received)) {
+                    System.out.println("Parsers differ on " + file);
+                    failed++;
+                }
+            }
+        }
+        System.out.println((failed == 0 ? "Parser compare passed! (" + files.size() + " files)"
+                : "Parser compare failed! (" + failed + " files)") + " line parser: " + lineNanos / 1000000 + "ms, "
+                + lineBytes / 1024 + "KB, mapped parser: " + mappedNanos / 1000000 + "ms, " + mappedBytes / 1024 + "KB");
+    }
+
+    // Checks the upstream regions of the homologous genes found by a parallel pipeline over the streamed genes, the
+    // genome only being read once the features are, against those of the parsed records
+    private static void compareStream(String referenceFile, String dir) throws IOException {
+        EncodedMatrix blosum62 = BLOSUM62.LoadEncoded();
+        List<QueryProfile> profiles = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(referenceFile));
+        while (reader.readLine() != null)
+            profiles.add(new QueryProfile(new PeptideSequence(reader.readLine()).codes, blosum62));
+        reader.close();
+
+        int failed = 0, regions = 0;
+        for (String file : ParallelByReferenceGene.ListGenbankFiles(dir)) {
+            GenbankRecord record = GenbankParser.Parse(file);
+            GenbankStream stream = GenbankStream.Open(file);
+            for (QueryProfile profile : profiles) {
+                List<Gene> homologous = stream.Genes().parallel()
+                        .filter(gene -> Homology.Homologous(gene.sequence, profile)).collect(Collectors.toList());
+                List<NucleotideRegion> received = homologous.stream().map(stream::GetUpstreamRegion)
+                        .collect(Collectors.toList());
+                List<NucleotideRegion> expected = new ArrayList<>();
+                boolean[] pass = Homology.Homologous(record.genes, profile);
+                for (int g = 0; g < pass.length; g++)
+                    if (pass[g])
+                        expected.add(record.nucleotides.GetUpstreamRegion(record.genes.get(g)));
+                regions += expected.size();
+                if (!expected.equals(received)) {
+                    System.out.println("Streamed genes differ on " + file);
+                    failed++;
+                }
+            }
+        }
+        System.out.println(failed == 0 ? "Stream compare passed! (" + regions + " regions)"
+                : "Stream compare failed! (" + failed + " mismatches)");
+    }
+
+    // The protein store interns the translations, so equal genes share their peptide
+    private static boolean sameRecord(GenbankRecord expected, GenbankRecord received) {
+        if (expected.genes.size() != received.genes.size())
+            return false;
+        for (int g = 0; g < expected.genes.size(); g++) {
+            Gene a = expected.genes.get(g), b = received.genes.get(g);
+            if (!a.name.equals(b.name) || a.strand != b.strand || a.location != b.location || a.sequence != b.sequence)
+                return false;
+        }
+        return expected.nucleotides == null || Arrays.equals(expected.nucleotides.bytes, received.nucleotides.bytes);
+    }
+
+    // Checks the compiled sigma-70 scanner, one region at a time and in a batch, against the jacobi search on the
+    // upstream region of every gene
+    private static void compareScanner(String dir) throws IOException {
+        List<GenbankRecord> records = ParallelByReferenceGene.ParseRecords(dir, null);
+        Series pattern = Sigma70Definition.getSeriesAll_Unanchored(0.7);
+        Sigma70Scanner scanner = new Sigma70Scanner(pattern);
+
+        List<NucleotideRegion> regions = new ArrayList<>();
+        List<Promoter> expected = new ArrayList<>();
+        for (GenbankRecord record : records) {
+            for (Gene gene : record.genes) {
+                NucleotideRegion region = record.nucleotides.GetUpstreamRegion(gene);
+                Match match = BioPatterns.getBestMatch(pattern, region.toString());
+                regions.add(region);
+                expected.add(match == null ? null : Promoter.Of(match));
+            }
+        }
+        Promoter[] batch = scanner.Scan(regions);
+        int failed = 0;
+        for (int r = 0; r < regions.size(); r++) {
+            for (Promoter received : new Promoter[] {scanner.Scan(regions.get(r)), batch[r]}) {
+                if (!samePromoter(expected.get(r), received)) {
+                    System.out.println("Expected: <" + expected.get(r) + "> Received: <" + received + ">");
+                    failed++;
+                }
+            }
+        }
+        System.out.println(failed == 0 ? "Scanner compare passed! (" + regions.size() + " regions)"
+                : "Scanner compare failed! (" + failed + " mismatches)");
+    }
+
+    // jacobi spells the boxes in lower case
+    private static boolean samePromoter(Promoter expected, Promoter received) {
+        if (expected == null || received == null)
+            return expected == received;
+        return Double.doubleToLongBits(expected.similarity) == Double.doubleToLongBits(received.similarity)
+                && expected.gap == received.gap
+                && new String(expected.minus35).equalsIgnoreCase(new String(received.minus35))
+                && new String(expected.minus10).equalsIgnoreCase(new String(received.minus10));
+    }
+
+    // Checks the score kernels bit-for-bit against the original alignment on all pairs of reference genes
+    private static void compareEngines(String referenceFile) throws IOException {
+        if (!SmithWatermanGotoh.isVectorSupported()) {
+            System.out.println("Engine compare skipped! (run with --add-modules jdk.incubator.vector)");
+            return;
+        }
+        List<String> sequences = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(referenceFile));
+        while (reader.readLine() != null)
+            sequences.add(reader.readLine());
+        reader.close();
+
+        Matrix blosum62 = BLOSUM62.Load();
+        EncodedMatrix encoded = BLOSUM62.LoadEncoded();
+        int engine = SmithWatermanGotoh.getEngine();
+        int failed = 0;
+        for (String a : sequences) {
+            for (String b : sequences) {
+                Alignment alignment = SmithWatermanGotoh.align(new Sequence(a), new Sequence(b), blosum62, 10f, 0.5f);
+                float expected = alignment.calculateScore();
+                // The packed traceback must give back the very same alignment
+                if (!sameAlignment(alignment, SmithWatermanGotoh.alignCompact(new Sequence(a), new Sequence(b), blosum62, 10f, 0.5f))) {
+                    System.out.println("Compact alignment differs at <" + expected + ">");
+                    failed++;
+                }
+                QueryProfile profile = new QueryProfile(new Sequence(b), blosum62);
+                QueryProfile encodedProfile = new QueryProfile(encoded.encode(b), encoded);
+                for (int candidate : new int[] {SmithWatermanGotoh.SCALAR, SmithWatermanGotoh.STRIPED, SmithWatermanGotoh.INTEGER, SmithWatermanGotoh.INTER_SEQUENCE}) {
+                    SmithWatermanGotoh.setEngine(candidate);
+                    float[] received = {
+                            SmithWatermanGotoh.score(new Sequence(a), new Sequence(b), blosum62, 10f, 0.5f),
+                            SmithWatermanGotoh.score(new Sequence(a), profile, 10f, 0.5f),
+                            SmithWatermanGotoh.score(a.getBytes(), b.getBytes(), blosum62, 10f, 0.5f),
+                            SmithWatermanGotoh.score(profile, Collections.singletonList(a.getBytes()), 10f, 0.5f)[0],
+                            SmithWatermanGotoh.scoreBanded(new Sequence(a), profile, 10f, 0.5f, 0, a.length() + b.length()),
+                            SmithWatermanGotoh.score(encoded.encode(a), encoded.encode(b), encoded, 10f, 0.5f),
+                            SmithWatermanGotoh.score(encoded.encode(a), encodedProfile, 10f, 0.5f)
+                    };
+                    for (float score : received) {
+                        if (Float.floatToIntBits(expected) != Float.floatToIntBits(score)) {
+                            System.out.println("Expected: <" + expected + "> Received: <" + score + ">");
+                            failed++;
+                        }
+                    }
+                    // The decision kernels must agree on both sides of the score
+                    if (!SmithWatermanGotoh.reaches(new Sequence(a), profile, 10f, 0.5f, expected)
+                            || SmithWatermanGotoh.reaches(new Sequence(a), profile, 10f, 0.5f, expected + 0.5f)) {
+                        System.out.println("Decision failed at <" + expected + ">");
+                        failed++;
+                    }
+                }
+            }
+        }
+        failed += compareBands(sequences, blosum62);
+        SmithWatermanGotoh.setEngine(engine);
+        System.out.println(failed == 0 ? "Engine compare passed!" : "Engine compare failed! (" + failed + " pairs)");
+    }
+
+    // Narrow bands around paths built from the two halves of each reference gene: a best path running along the edge
+    // of the band and then leaving it must be scored on the whole matrix, and one inside the band gets the score of the
+    // band alone, below the one of the whole matrix
+    private static int compareBands(List<String> sequences, Matrix blosum62) {
+        Random random = new Random(42);
+        int failed = 0;
+        for (String sequence : sequences) {
+            String first = sequence.substring(0, sequence.length() / 2), second = sequence.substring(sequence.length() / 2);
+            String a = first + second;
+            // first on diagonal 8, the high edge of the band around 0, then second on diagonal 18
+            String across = randomPeptide(random, 8) + first + randomPeptide(random, 10) + second;
+            // first on diagonal 0, then second on diagonal 30, outside of the narrower band around 0
+            String inside = first + randomPeptide(random, 30) + second;
+            float acrossScore = SmithWatermanGotoh.align(new Sequence(a), new Sequence(across), blosum62, 10f, 0.5f).calculateScore();
+            float insideScore = bandedScore(a, inside, blosum62, 10f, 0.5f, -4, 4);
+            if (bandedScore(a, across, blosum62, 10f, 0.5f, -8, 8) >= acrossScore
+                    || insideScore >= SmithWatermanGotoh.align(new Sequence(a), new Sequence(inside), blosum62, 10f, 0.5f).calculateScore()) {
+                System.out.println("Band cases of <" + sequence.length() + "> residues do not leave the band");
+                failed++;
+                continue;
+            }
+            QueryProfile acrossProfile = new QueryProfile(new Sequence(across), blosum62);
+            QueryProfile insideProfile = new QueryProfile(new Sequence(inside), blosum62);
+            for (int candidate : new int[] {SmithWatermanGotoh.SCALAR, SmithWatermanGotoh.STRIPED, SmithWatermanGotoh.INTEGER, SmithWatermanGotoh.INTER_SEQUENCE}) {
+                SmithWatermanGotoh.setEngine(candidate);
+                float received = SmithWatermanGotoh.scoreBanded(new Sequence(a), acrossProfile, 10f, 0.5f, 0, 8);
+                if (Float.floatToIntBits(acrossScore) != Float.floatToIntBits(received)) {
+                    System.out.println("Band edge expected: <" + acrossScore + "> Received: <" + received + ">");
+                    failed++;
+                }
+                received = SmithWatermanGotoh.scoreBanded(new Sequence(a), insideProfile, 10f, 0.5f, 0, 4);
+                if (Float.floatToIntBits(insideScore) != Float.floatToIntBits(received)) {
+                    System.out.println("Band inside expected: <" + insideScore + "> Received: <" + received + ">");
+                    failed++;
+                }
+            }
+        }
+        return failed;
+    }
+
+    private static String randomPeptide(Random random, int length) {
+        StringBuilder peptide = new StringBuilder();
+        for (int i = 0; i < length; i++)
+            peptide.append(RESIDUES.charAt(random.nextInt(RESIDUES.length())));
+        return peptide.toString();
+    }
+
+    // Plain Gotoh recurrence on the whole matrix, where the cells off the diagonals [low, high] neither start nor
+    // extend a path
+    private static float bandedScore(String a, String b, Matrix matrix, float o, float e, int low, int high) {
+        float[][] scores = matrix.getScores();
+        int m = a.length() + 1, n = b.length() + 1;
+        float[][] v = new float[m][n], g = new float[m][n];
+        float best = 0;
+        for (int j = 0; j < n; j++)
+            g[0][j] = Float.NEGATIVE_INFINITY;
+        for (int i = 1; i < m; i++) {
+            g[i][0] = Float.NEGATIVE_INFINITY;
+            float h = Float.NEGATIVE_INFINITY;
+            for (int j = 1; j < n; j++) {
+                if (j - i < low || j - i > high) {
+                    g[i][j] = h = Float.NEGATIVE_INFINITY;
+                    continue;
+                }
+                float f = v[i - 1][j - 1] + scores[a.charAt(i - 1)][b.charAt(j - 1)];
+                g[i][j] = Math.max(g[i - 1][j] - e, v[i - 1][j] - o);
+                h = Math.max(h - e, v[i][j - 1] - o);
+                v[i][j] = Math.max(Math.max(f, g[i][j]), Math.max(h, 0));
+                best = Math.max(best, v[i][j]);
+            }
+        }
+        return best;
+    }
+
+    // Checks the parallel construction against the sequential one on all pairs of reference genes and on related
+    // random sequences whose lengths are not multiples of the tile size
+    private static void compareWavefront(String referenceFile) throws IOException {
+        List<String> sequences = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(referenceFile));
+        while (reader.readLine() != null)
+            sequences.add(reader.readLine());
+        reader.close();
+
+        List<String[]> pairs = new ArrayList<>();
+        for (String a : sequences)
+            for (String b : sequences)
+                pairs.add(new String[] {a, b});
+        Random random = new Random(42);
+        for (int length : new int[] {1, 2, 100, 255, 256, 257, 300, 511, 512, 513, 700}) {
+            StringBuilder a = new StringBuilder(), b = new StringBuilder(), c = new StringBuilder();
+            for (int i = 0; i < length; i++) {
+                char residue = RESIDUES.charAt(random.nextInt(RESIDUES.length()));
+                a.append(residue);
+                c.append(RESIDUES.charAt(random.nextInt(RESIDUES.length())));
+                // b is a with substitutions, insertions and deletions, so the best path crosses tiles with gaps
+                int edit = random.nextInt(20);
+                if (edit == 0)
+                    b.append(RESIDUES.charAt(random.nextInt(RESIDUES.length())));
+                else if (edit == 1)
+                    b.append(residue).append(RESIDUES.charAt(random.nextInt(RESIDUES.length())));
+                else if (edit != 2)
+                    b.append(residue);
+            }
+            pairs.add(new String[] {a.toString(), b.toString()});
+            pairs.add(new String[] {a.toString(), c.toString()});
+        }
+
+        Matrix blosum62 = BLOSUM62.Load();
+        long threshold = SmithWatermanGotoh.getWavefrontThreshold();
+        int failed = 0;
+        for (String[] pair : pairs) {
+            SmithWatermanGotoh.setWavefrontThreshold(Long.MAX_VALUE);
+            Alignment expected = SmithWatermanGotoh.align(new Sequence(pair[0]), new Sequence(pair[1]), blosum62, 10f, 0.5f);
+            SmithWatermanGotoh.setWavefrontThreshold(0);
+            Alignment received = SmithWatermanGotoh.align(new Sequence(pair[0]), new Sequence(pair[1]), blosum62, 10f, 0.5f);
+            if (!sameAlignment(expected, received)) {
+                System.out.println("Wavefront alignment differs for lengths <" + pair[0].length() + ", " + pair[1].length() + ">");
+                failed++;
+            }
+        }
+        SmithWatermanGotoh.setWavefrontThreshold(threshold);
+        System.out.println(failed == 0 ? "Wavefront compare passed! (" + pairs.size() + " pairs)"
+                : "Wavefront compare failed! (" + failed + " pairs)");
+    }
+
+    private static boolean sameAlignment(Alignment expected, Alignment received) {
+        return Arrays.equals(expected.getSequence1(), received.getSequence1())
+                && Arrays.equals(expected.getSequence2(), received.getSequence2())
+                && expected.getStart1() == received.getStart1() && expected.getStart2() == received.getStart2()
+                && Float.floatToIntBits(expected.getScore()) == Float.floatToIntBits(received.getScore());
+    }
+
     private static void compareDirect(Map<String, Sigma70Consensus> sequentialConsensus, Map<String, Sigma70Consensus> parallelConsensus) {
         System.out.println(sequentialConsensus.equals(parallelConsensus)? "Direct compare passed!" : "Direct compare failed!");
         System.out.println("Sequential:");
@@ -0,0 +1,195 @@
+package qut;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.atomic.LongAdder;
+
+// Persistent cache of homology scores, a memory-mapped file reused from run to run. Each entry keeps what is known
+// of the score of a (reference, target) pair: lower <= score < upper, exact scores having upper just above lower.
+// The table is 16-way set associative: a key can only live in the 16 slots of its set, so each set is guarded by
+// its own lock and a full set evicts its entry from the oldest run. The file is locked, one process at a time.
+public class ScoreCache
+{
+    public static final int DEFAULT_ENTRIES = 1 << 20;
+
+    private static final int MAGIC = 0x51534331; // "QSC1"
+    private static final int HEADER = 64;
+    private static final int SLOT = 32; // reference key, target key, lower, upper, run
+    private static final int WAYS = 16;
+    private static final int LOCKS = 256;
+
+    private final RandomAccessFile file;
+    private final FileLock fileLock;
+    private final MappedByteBuffer buffer;
+    private final int sets;
+    private final int run;
+    private final Object[] locks = new Object[LOCKS];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private ScoreCache(RandomAccessFile file, FileLock fileLock, MappedByteBuffer buffer, int sets, int run)
+    {
+        this.file = file;
+        this.fileLock = fileLock;
+        this.buffer = buffer;
+        this.sets = sets;
+        this.run = run;
+        for (int i = 0; i < LOCKS; i++)
+            locks[i] = new Object();
+    }
+
+    // Opens, or creates, a cache of at most the given number of entries. An existing cache of another size is
+    // cleared. Returns null if another process holds the cache.
+    public static ScoreCache Open(String path, int entries) throws IOException
+    {
+        int sets = Integer.highestOneBit(Math.max(WAYS, Math.min(entries, (Integer.MAX_VALUE - HEADER) / SLOT)) / WAYS);
+        long size = HEADER + (long) sets * WAYS * SLOT;
+
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        FileLock fileLock = file.getChannel().tryLock();
+        if (fileLock == null)
+        {
+            file.close();
+            return null;
+        }
+        boolean valid = file.length() == size;
+        file.setLength(size);
+        MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (!valid || buffer.getInt(0) != MAGIC || buffer.getInt(4) != sets)
+        {
+            for (long offset = 0; offset < size; offset += 8)
+                buffer.putLong((int) offset, 0);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, sets);
+        }
+        int run = buffer.getInt(8) + 1;
+        buffer.putInt(8, run);
+        return new ScoreCache(file, fileLock, buffer, sets, run);
+    }
+
+    // 64-bit FNV-1a hash, finished with the SplitMix64 mixer
+    public static long Hash(byte[] bytes)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes)
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        return Mix(hash);
+    }
+
+    public static long Hash(String string)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < string.length(); i++)
+            hash = (hash ^ string.charAt(i)) * 0x100000001b3L;
+        return Mix(hash);
+    }
+
+    public static long Mix(long hash)
+    {
+        hash = (hash ^ (hash >>> 30)) * 0xbf58476d1ce4e5b9L;
+        hash = (hash ^ (hash >>> 27)) * 0x94d049bb133111ebL;
+        return hash ^ (hash >>> 31);
+    }
+
+    // Bounds of the score of a pair, lower in the high 32 bits and upper in the low ones, see Lower and Upper
+    public long Lookup(long reference, long target)
+    {
+        if (reference == 0)
+            reference = 1; // zero keys mark the empty slots
+        int set = Set(reference, target);
+        synchronized (locks[set & (LOCKS - 1)])
+        {
+            int offset = HEADER + set * WAYS * SLOT;
+            for (int way = 0; way < WAYS; way++, offset += SLOT)
+                if (buffer.getLong(offset) == reference && buffer.getLong(offset + 8) == target)
+                {
+                    hits.increment();
+                    return Bounds(buffer.getFloat(offset + 16), buffer.getFloat(offset + 20));
+                }
+        }
+        misses.increment();
+        return Bounds(Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+    }
+
+    // Narrows the bounds of the score of a pair
+    public void Record(long reference, long target, float lower, float upper)
+    {
+        if (reference == 0)
+            reference = 1;
+        int set = Set(reference, target);
+        synchronized (locks[set & (LOCKS - 1)])
+        {
+            int offset = HEADER + set * WAYS * SLOT;
+            int victim = -1;
+            int victimRun = Integer.MAX_VALUE;
+            for (int way = 0; way < WAYS; way++, offset += SLOT)
+            {
+                long key = buffer.getLong(offset);
+                if (key == reference && buffer.getLong(offset + 8) == target)
+                {
+                    buffer.putFloat(offset + 16, Math.max(lower, buffer.getFloat(offset + 16)));
+                    buffer.putFloat(offset + 20, Math.min(upper, buffer.getFloat(offset + 20)));
+                    buffer.putInt(offset + 24, run);
+                    return;
+                }
+                int slotRun = key == 0 ? Integer.MIN_VALUE : buffer.getInt(offset + 24);
+                if (slotRun < victimRun)
+                {
+                    victim = offset;
+                    victimRun = slotRun;
+                }
+            }
+            // The slot is emptied first and its reference key written last, so a run ending halfway leaves an
+            // empty slot rather than the new key with the bounds of the evicted entry
+            buffer.putLong(victim, 0);
+            buffer.putLong(victim + 8, target);
+            buffer.putFloat(victim + 16, lower);
+            buffer.putFloat(victim + 20, upper);
+            buffer.putInt(victim + 24, run);
+            buffer.putLong(victim, reference);
+        }
+    }
+
+    public static float Lower(long bounds)
+    {
+        return Float.intBitsToFloat((int) (bounds >>> 32));
+    }
+
+    public static float Upper(long bounds)
+    {
+        return Float.intBitsToFloat((int) bounds);
+    }
+
+    private static long Bounds(float lower, float upper)
+    {
+        return (long) Float.floatToRawIntBits(lower) << 32 | (Float.floatToRawIntBits(upper) & 0xffffffffL);
+    }
+
+    private int Set(long reference, long target)
+    {
+        return (int) (Mix(reference * 31 + target) & (sets - 1));
+    }
+
+    public int Capacity()
+    {
+        return sets * WAYS;
+    }
+
+    public String Report()
+    {
+        return "Score cache: " + hits.sum() + " hits, " + misses.sum() + " misses, run " + run + ", capacity "
+                + Capacity() + " entries";
+    }
+
+    // Writes the table back to the file and releases it
+    public void Close() throws IOException
+    {
+        buffer.force();
+        fileLock.release();
+        file.close();
+    }
+}
@@ -9,19 +9,10 @@ import java.util.*;
 public class Sequential
 {
     private static HashMap<String, Sigma70Consensus> consensus = new HashMap<String, Sigma70Consensus>();
-    private static Series sigma70_pattern = Sigma70Definition.getSeriesAll_Unanchored(0.7);
-    private static final Matrix BLOSUM_62 = BLOSUM62.Load();
-    private static byte[] complement = new byte['z'];
+    private static final Sigma70Scanner sigma70_scanner = Sigma70Definition.getScanner();
+    private static final EncodedMatrix BLOSUM_62 = BLOSUM62.LoadEncoded();
 
-    static
-    {
-        complement['C'] = 'G'; complement['c'] = 'g';
-        complement['G'] = 'C'; complement['g'] = 'c';
-        complement['T'] = 'A'; complement['t'] = 'a';
-        complement['A'] = 'T'; complement['a'] = 't';
-    }
-
-    private static List<Long> sw_times = new ArrayList<>();
+    private static List<Long> batch_times = new ArrayList<>();
 
 
     private static List<Gene> ParseReferenceGenes(String referenceFile) throws FileNotFoundException, IOException
@@ -34,7 +25,9 @@ public class Sequential
             if (name == null)
                 break;
             String sequence = reader.readLine();
-            referenceGenes.add(new Gene(name, 0, 0, sequence));
+            Gene referenceGene = new Gene(name, 0, 0, sequence);
+            referenceGene.profile = new QueryProfile(referenceGene.sequence.codes, BLOSUM_62);
+            referenceGenes.add(referenceGene);
             consensus.put(name, new Sigma70Consensus());
         }
         consensus.put("all", new Sigma70Consensus());
@@ -42,37 +35,22 @@ public class Sequential
         return referenceGenes;
     }
 
-    private static boolean Homologous(PeptideSequence A, PeptideSequence B) // Modified
+    // Times the homology check of a whole record against one reference gene, not of each pair
+    private static boolean[] Homologous(List<Gene> genes, QueryProfile B) // Modified
     {
         long startTime = System.nanoTime();
-        boolean pass = SmithWatermanGotoh.align(new Sequence(A.toString()), new Sequence(B.toString()), BLOSUM_62, 10f, 0.5f).calculateScore() >= 60;
+        boolean[] pass = Homology.Homologous(genes, B);
         long endTime = System.nanoTime();
         long duration = endTime - startTime;
-        sw_times.add(duration);
+        batch_times.add(duration);
         return pass;
     }
 
-    private static NucleotideSequence GetUpstreamRegion(NucleotideSequence dna, Gene gene)
-    {
-        int upStreamDistance = 250;
-        if (gene.location < upStreamDistance)
-            upStreamDistance = gene.location-1;
-
-        if (gene.strand == 1)
-            return new NucleotideSequence(java.util.Arrays.copyOfRange(dna.bytes, gene.location-upStreamDistance-1, gene.location-1));
-        else
-        {
-            byte[] result = new byte[upStreamDistance];
-            int reverseStart = dna.bytes.length - gene.location + upStreamDistance;
-            for (int i=0; i<upStreamDistance; i++)
-                result[i] = complement[dna.bytes[reverseStart-i]];
-            return new NucleotideSequence(result);
-        }
-    }
-
-    private static Match PredictPromoter(NucleotideSequence upStreamRegion)
+    private static Promoter[] PredictPromoters(GenbankRecord record, List<NucleotideRegion> upStreamRegions)
     {
-        return BioPatterns.getBestMatch(sigma70_pattern, upStreamRegion.toString());
+        if (PromoterTrack.Enabled())
+            return PromoterTrack.Of(record, sigma70_scanner).Predict(upStreamRegions);
+        return PromoterCache.Predict(sigma70_scanner, upStreamRegions);
     }
 
     private static void ProcessDir(List<String> list, File dir)
@@ -94,11 +72,7 @@ public class Sequential
 
     private static GenbankRecord Parse(String file) throws IOException
     {
-        GenbankRecord record = new GenbankRecord();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file)));
-        record.Parse(reader);
-        reader.close();
-        return record;
+        return GenbankParser.Parse(file);
     }
 
     public static HashMap<String, Sigma70Consensus> run(String referenceFile, String dir) throws FileNotFoundException, IOException
@@ -111,24 +85,24 @@ public class Sequential
             for (Gene referenceGene : referenceGenes)
             {
                 System.out.println(referenceGene.name);
-                for (Gene gene : record.genes)
-                    if (Homologous(gene.sequence, referenceGene.sequence))
+                boolean[] homologous = Homologous(record.genes, referenceGene.profile);
+                List<NucleotideRegion> upStreamRegions = new ArrayList<>();
+                for (int g = 0; g < homologous.length; g++)
+                    if (homologous[g])
+                        upStreamRegions.add(record.nucleotides.GetUpstreamRegion(record.genes.get(g)));
+                for (Promoter prediction : PredictPromoters(record, upStreamRegions))
+                    if (prediction != null)
                     {
-                        NucleotideSequence upStreamRegion = GetUpstreamRegion(record.nucleotides, gene);
-                        Match prediction = PredictPromoter(upStreamRegion);
-                        if (prediction != null)
-                        {
-                            consensus.get(referenceGene.name).addMatch(prediction);
-                            consensus.get("all").addMatch(prediction);
-                        }
+                        consensus.get(referenceGene.name).addMatch(prediction);
+                        consensus.get("all").addMatch(prediction);
                     }
-                System.out.println( "sw stats for " + referenceGene.name +
-                        " size: " + sw_times.size() +
-                        " average: " + sw_times.stream().mapToDouble(d -> d).average() +
-                        " min: " + Collections.min(sw_times).toString() +
-                        " max: " + Collections.max(sw_times).toString()
+                System.out.println( "homology batch stats for " + referenceGene.name +
+                        " size: " + batch_times.size() +
+                        " average: " + batch_times.stream().mapToDouble(d -> d).average() +
+                        " min: " + Collections.min(batch_times).toString() +
+                        " max: " + Collections.max(batch_times).toString()
                 );
-                //sw_times.clear();
+                //batch_times.clear();
             }
         }
 
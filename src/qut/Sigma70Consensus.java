@@ -43,11 +43,17 @@ public class Sigma70Consensus
     }
 
     public void addMatch(Match match)
+    {
+        addMatch(Promoter.Of(match));
+    }
+
+    // Synchronized: the parallel engines share one consensus per reference gene
+    public synchronized void addMatch(Promoter promoter)
     {
         predictions += 1;
-        gapTotal += match.getSubMatch(1).calcLength();
-        add_10Sequence(match.getSubMatch(2).letters().getBytes());
-        add_35Sequence(match.getSubMatch(0).letters().getBytes());
+        gapTotal += promoter.gap;
+        add_10Sequence(promoter.minus10);
+        add_35Sequence(promoter.minus35);
     }    
     
     public void set(Match match)
@@ -5,6 +5,9 @@ import edu.au.jacobi.pattern.*;
 
 public class Sigma70Definition 
 {
+    // Compiled once: the scanner keeps no match state, so every worker shares it
+    private static final Sigma70Scanner scanner = new Sigma70Scanner(getSeriesAll_Unanchored(0.7));
+
     private static PWM getMinus10Pwm()
     {
         Alphabet alphabet = AlphabetDNA.instance();
@@ -43,4 +46,9 @@ public class Sigma70Definition
         series.add(pwmM10);
         return series;
     }   	    
+
+    public static Sigma70Scanner getScanner()
+    {
+        return scanner;
+    }
 }
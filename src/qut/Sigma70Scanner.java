@@ -0,0 +1,437 @@
+package qut;
+
+import edu.au.jacobi.pattern.Gap;
+import edu.au.jacobi.pattern.PWM;
+import edu.au.jacobi.pattern.Series;
+import edu.au.jacobi.pattern.SeriesAll;
+import jaligner.SmithWatermanGotoh;
+import java.util.List;
+
+// Sigma-70 search compiled from a jacobi (-35 PWM, spacer, -10 PWM) series into primitive tables. It finds the same
+// best match as Sequence.searchBest with the series, the first of the best scoring (position, spacer) in search
+// order, computing each similarity with the same operations in the same order so the scores are bit-identical.
+// Branch and bound: a position is abandoned as soon as an upper bound of its similarity cannot reach the threshold or
+// beat the best match so far, and only the combinations that still can are divided out.
+// Regions are read in place in the genome: the minus strand is read backwards with complemented tables, so its bases
+// are never copied nor complemented one by one.
+// Immutable once built, with all the state of a search in local variables, unlike the Match a jacobi Series keeps
+// and overwrites: one scanner serves any number of threads.
+public final class Sigma70Scanner
+{
+    static final int CHARACTERS = 128;
+
+    private final int length35;
+    private final int length10;
+    private final int minGap;
+    private final int maxGap;
+    private final double[] weights35; // by column * CHARACTERS + character
+    private final double[] weights10;
+    private final double[] complementWeights35; // weights of the complement of each character
+    private final double[] complementWeights10;
+    // Characters with the same weights in every column of both PWMs share a group, the SIMD lanes blending the weights
+    // of the few groups instead of gathering them by character
+    private final byte[] groups = new byte[CHARACTERS];
+    private final byte[] complementGroups = new byte[CHARACTERS];
+    private final int groupCount;
+    private final double[] groupWeights35; // by column * groupCount + group
+    private final double[] groupWeights10;
+    private final double min35, range35, threshold35;
+    private final double min10, range10, threshold10;
+    private final double[] gapTerms; // weighted spacer similarity, by spacer length - minGap
+    private final double maxReach; // best spacer term with a perfect -10 box
+    private final double impact35, impact10, impacts;
+    private final double threshold;
+    private final long signature;
+
+    public Sigma70Scanner(Series pattern)
+    {
+        if (!(pattern instanceof SeriesAll) || pattern.size() != 3 || !(pattern.get(0) instanceof PWM)
+                || !(pattern.get(1) instanceof Gap) || !(pattern.get(2) instanceof PWM))
+            throw new IllegalArgumentException("Not a (PWM, Gap, PWM) series: " + pattern);
+        PWM pwm35 = (PWM) pattern.get(0);
+        Gap spacer = (Gap) pattern.get(1);
+        PWM pwm10 = (PWM) pattern.get(2);
+        if (spacer.getMinLength() < 0)
+            throw new IllegalArgumentException("Overlapping spacer: " + spacer.getMinLength());
+
+        length35 = pwm35.length();
+        length10 = pwm10.length();
+        weights35 = Weights(pwm35);
+        weights10 = Weights(pwm10);
+        int count = 0;
+        for (int c = 0; c < CHARACTERS; c++)
+        {
+            int group = 0;
+            while (group < count && !SameWeights(Representative(group), c))
+                group++;
+            groups[c] = (byte) group;
+            if (group == count)
+                count++;
+        }
+        groupCount = count;
+        for (int c = 0; c < CHARACTERS; c++)
+            complementGroups[c] = groups[Complement(c)];
+        complementWeights35 = ComplementWeights(weights35, length35);
+        complementWeights10 = ComplementWeights(weights10, length10);
+        groupWeights35 = GroupWeights(weights35, length35);
+        groupWeights10 = GroupWeights(weights10, length10);
+        // Summed column by column like PWM, so the similarities divide by the very same doubles
+        min35 = Sum(weights35, length35, false);
+        range35 = Range(Sum(weights35, length35, true), min35);
+        min10 = Sum(weights10, length10, false);
+        range10 = Range(Sum(weights10, length10, true), min10);
+        threshold35 = pwm35.getThreshold();
+        threshold10 = pwm10.getThreshold();
+
+        impact35 = pwm35.getImpact();
+        impact10 = pwm10.getImpact();
+        impacts = impact35 + spacer.getImpact() + impact10;
+
+        minGap = spacer.getMinLength();
+        maxGap = spacer.getMaxLength();
+        gapTerms = new double[maxGap - minGap + 1];
+        double reach = Double.NEGATIVE_INFINITY;
+        for (int length = 0; length < gapTerms.length; length++)
+        {
+            gapTerms[length] = spacer.getGapSim(length) * spacer.getImpact();
+            reach = Math.max(reach, gapTerms[length] + impact10);
+        }
+        maxReach = reach;
+        threshold = pattern.getThreshold();
+        signature = Sign();
+    }
+
+    // Weights of every ASCII character, the ones outside the PWM alphabet taking the lowest weight of the column
+    private static double[] Weights(PWM pwm)
+    {
+        double[] weights = new double[pwm.length() * CHARACTERS];
+        for (int column = 0; column < pwm.length(); column++)
+            for (int c = 0; c < CHARACTERS; c++)
+                weights[column * CHARACTERS + c] = pwm.get((char) c, column);
+        return weights;
+    }
+
+    // Character read on the minus strand for a character of the genome, unknown ones reading as 0 like the copies did
+    private static int Complement(int c)
+    {
+        return NucleotideSequence.Complement((byte) c) & (CHARACTERS - 1);
+    }
+
+    private static double[] ComplementWeights(double[] weights, int length)
+    {
+        double[] complemented = new double[weights.length];
+        for (int column = 0; column < length; column++)
+            for (int c = 0; c < CHARACTERS; c++)
+                complemented[column * CHARACTERS + c] = weights[column * CHARACTERS + Complement(c)];
+        return complemented;
+    }
+
+    private boolean SameWeights(int c, int d)
+    {
+        for (int column = 0; column < length35; column++)
+            if (weights35[column * CHARACTERS + c] != weights35[column * CHARACTERS + d])
+                return false;
+        for (int column = 0; column < length10; column++)
+            if (weights10[column * CHARACTERS + c] != weights10[column * CHARACTERS + d])
+                return false;
+        return true;
+    }
+
+    // First character of a group
+    private int Representative(int group)
+    {
+        int c = 0;
+        while (groups[c] != group)
+            c++;
+        return c;
+    }
+
+    private double[] GroupWeights(double[] weights, int length)
+    {
+        double[] grouped = new double[length * groupCount];
+        for (int column = 0; column < length; column++)
+            for (int group = 0; group < groupCount; group++)
+                grouped[column * groupCount + group] = weights[column * CHARACTERS + Representative(group)];
+        return grouped;
+    }
+
+    private static double Sum(double[] weights, int length, boolean max)
+    {
+        double sum = 0;
+        for (int column = 0; column < length; column++)
+        {
+            double extreme = weights[column * CHARACTERS];
+            for (int c = 1; c < CHARACTERS; c++)
+                extreme = max ? Math.max(extreme, weights[column * CHARACTERS + c])
+                        : Math.min(extreme, weights[column * CHARACTERS + c]);
+            sum += extreme;
+        }
+        return sum;
+    }
+
+    private static double Range(double max, double min)
+    {
+        return max - min == 0 ? 1 : max - min;
+    }
+
+    // Similarity of the box whose first base is at the given index of the genome, the next ones a step apart
+    private static double Similarity(double[] weights, int length, byte[] bytes, int index, int step, double min,
+            double range)
+    {
+        double sum = 0;
+        for (int column = 0; column < length; column++, index += step)
+            sum += weights[column * CHARACTERS + (bytes[index] & (CHARACTERS - 1))];
+        return (sum - min) / range;
+    }
+
+    public Promoter Scan(byte[] region)
+    {
+        return Scan(new NucleotideRegion(region));
+    }
+
+    // Best match in the region, null if none reaches the threshold of the series
+    public Promoter Scan(NucleotideRegion region)
+    {
+        int last = region.length - length10; // last start of the -10 box
+        if (last < length35 + minGap)
+            return null;
+        byte[] bytes = region.bytes;
+        int step = region.strand > 0 ? 1 : -1;
+        double[] table35 = step > 0 ? weights35 : complementWeights35;
+        double[] table10 = step > 0 ? weights10 : complementWeights10;
+        double[] similarity10 = new double[last + 1];
+        for (int position = length35 + minGap; position <= last; position++)
+            similarity10[position] = Similarity(table10, length10, bytes, region.offset + position * step, step, min10,
+                    range10);
+
+        double best = -1;
+        double limit = Limit(best);
+        int best35 = -1;
+        int bestGap = 0;
+        for (int position = 0; position + length35 + minGap <= last; position++)
+        {
+            // Even a perfect -35 box needs a good enough spacer and -10 box, otherwise it is not even scored
+            double reach = Reach(similarity10, position + length35, last);
+            if (impact35 + reach < limit)
+                continue;
+            double similarity35 = Similarity(table35, length35, bytes, region.offset + position * step, step, min35,
+                    range35);
+            if (similarity35 < threshold35 || similarity35 * impact35 + reach < limit)
+                continue;
+            for (int gap = minGap; gap <= maxGap && position + length35 + gap <= last; gap++)
+            {
+                double similarity = Combination(similarity35, gap, similarity10[position + length35 + gap], limit);
+                if (similarity >= threshold && similarity > best)
+                {
+                    best = similarity;
+                    limit = Limit(best);
+                    best35 = position;
+                    bestGap = gap;
+                }
+            }
+        }
+        return Match(region, best35, bestGap, best);
+    }
+
+    // Best matches in many regions. The regions are laid end to end in one arena of character groups and, with the
+    // Vector API, the two PWMs score all its positions in SIMD lanes; the spacer combinations are then chosen region
+    // by region, which costs less than scoring them all in lanes and gathering each region's best from the rows.
+    public Promoter[] Scan(List<NucleotideRegion> regions)
+    {
+        Promoter[] promoters = new Promoter[regions.size()];
+        if (!SmithWatermanGotoh.isVectorSupported())
+        {
+            for (int r = 0; r < promoters.length; r++)
+                promoters[r] = Scan(regions.get(r));
+            return promoters;
+        }
+
+        int size = 0;
+        for (NucleotideRegion region : regions)
+            size += region.length;
+        // The -10 box is scored up to the longest spacer past the last -35 box. Positions near the end of a region
+        // read into the next one or into the padding, and only feed combinations that are never chosen.
+        int count = size + length35 + maxGap;
+        double[] arena = new double[count + Sigma70Vectors.PADDING + Math.max(length35, length10)];
+        int[] starts = new int[promoters.length];
+        for (int r = 0, start = 0; r < promoters.length; start += regions.get(r++).length)
+        {
+            starts[r] = start;
+            NucleotideRegion region = regions.get(r);
+            byte[] bytes = region.bytes;
+            int step = region.strand > 0 ? 1 : -1;
+            byte[] codes = step > 0 ? groups : complementGroups;
+            for (int i = 0, index = region.offset; i < region.length; i++, index += step)
+                arena[start + i] = codes[bytes[index] & (CHARACTERS - 1)];
+        }
+        double[] similarities35 = Sigma70Vectors.Similarities(groupWeights35, groupCount, length35, min35, range35,
+                arena, count);
+        double[] similarities10 = Sigma70Vectors.Similarities(groupWeights10, groupCount, length10, min10, range10,
+                arena, count);
+        for (int r = 0; r < promoters.length; r++)
+            promoters[r] = Best(regions.get(r), similarities35, similarities10, starts[r]);
+        return promoters;
+    }
+
+    // Chooses the best (-35, spacer, -10) combination of a region from the similarities of its positions, stored from
+    // the given start, exactly as Scan does
+    private Promoter Best(NucleotideRegion region, double[] similarities35, double[] similarities10, int start)
+    {
+        int last = region.length - length10;
+        double best = -1;
+        double limit = Limit(best);
+        int best35 = -1;
+        int bestGap = 0;
+        for (int position = 0; position + length35 + minGap <= last; position++)
+        {
+            double similarity35 = similarities35[start + position];
+            if (similarity35 < threshold35 || similarity35 * impact35 + maxReach < limit)
+                continue;
+            for (int gap = minGap; gap <= maxGap && position + length35 + gap <= last; gap++)
+            {
+                double similarity = Combination(similarity35, gap, similarities10[start + position + length35 + gap],
+                        limit);
+                if (similarity >= threshold && similarity > best)
+                {
+                    best = similarity;
+                    limit = Limit(best);
+                    best35 = position;
+                    bestGap = gap;
+                }
+            }
+        }
+        return Match(region, best35, bestGap, best);
+    }
+
+    // Best match ending at each end in [from, to) of a whole strand read as one region, for PromoterTrack: its
+    // similarity as a float, -infinity without any, and its spacer. Of the matches sharing an end the one starting
+    // first is kept, the one Scan meets first.
+    void Track(NucleotideRegion strand, int from, int to, float[] scores, byte[] gaps)
+    {
+        byte[] bytes = strand.bytes;
+        int step = strand.strand > 0 ? 1 : -1;
+        double[] table35 = step > 0 ? weights35 : complementWeights35;
+        double[] table10 = step > 0 ? weights10 : complementWeights10;
+        int first = Math.max(0, from - Span(maxGap));
+        double[] similarities35 = new double[Math.max(0, to - Span(minGap) - first)];
+        for (int start = first; start < first + similarities35.length; start++)
+            similarities35[start - first] = Similarity(table35, length35, bytes, strand.offset + start * step, step,
+                    min35, range35);
+
+        double limit = Limit(-1);
+        for (int end = from; end < to; end++)
+        {
+            double best = -1;
+            int bestGap = -1;
+            int start10 = end - length10;
+            if (start10 >= length35 + minGap)
+            {
+                double similarity10 = Similarity(table10, length10, bytes, strand.offset + start10 * step, step,
+                        min10, range10);
+                for (int gap = Math.min(maxGap, start10 - length35); gap >= minGap; gap--)
+                {
+                    double similarity35 = similarities35[start10 - gap - length35 - first];
+                    if (similarity35 < threshold35)
+                        continue;
+                    double similarity = Combination(similarity35, gap, similarity10, limit);
+                    if (similarity >= threshold && similarity > best)
+                    {
+                        best = similarity;
+                        bestGap = gap;
+                    }
+                }
+            }
+            scores[end] = bestGap < 0 ? Float.NEGATIVE_INFINITY : (float) best;
+            gaps[end] = (byte) bestGap;
+        }
+    }
+
+    // Similarity of one combination, computed as Scan does, NaN if it is not a match
+    double Similarity(NucleotideRegion region, int start35, int gap)
+    {
+        int step = region.strand > 0 ? 1 : -1;
+        double similarity35 = Similarity(step > 0 ? weights35 : complementWeights35, length35, region.bytes,
+                region.offset + start35 * step, step, min35, range35);
+        if (similarity35 < threshold35)
+            return Double.NaN;
+        double similarity10 = Similarity(step > 0 ? weights10 : complementWeights10, length10, region.bytes,
+                region.offset + (start35 + length35 + gap) * step, step, min10, range10);
+        double similarity = Combination(similarity35, gap, similarity10, Limit(-1));
+        return similarity >= threshold ? similarity : Double.NaN;
+    }
+
+    // Bases covered by a match with the given spacer
+    int Span(int gap)
+    {
+        return length35 + gap + length10;
+    }
+
+    int MinGap()
+    {
+        return minGap;
+    }
+
+    int MaxGap()
+    {
+        return maxGap;
+    }
+
+    // Hash of everything the matches depend on, so a saved track is only read back by an equivalent scanner
+    long Signature()
+    {
+        return signature;
+    }
+
+    private long Sign()
+    {
+        long hash = ScoreCache.Mix(((long) length35 << 48) ^ ((long) length10 << 32) ^ (minGap << 16) ^ maxGap);
+        for (double[] values : new double[][] {weights35, weights10, gapTerms,
+                {min35, range35, threshold35, min10, range10, threshold10, impact35, impact10, impacts, threshold}})
+            for (double value : values)
+                hash = ScoreCache.Mix(hash ^ Double.doubleToLongBits(value));
+        return hash;
+    }
+
+    // Similarity of a combination as Match.calcSimilarity weighs it, NaN if the -10 box is under its threshold or if
+    // the weighted sum is under the limit, so surely not the best match
+    private double Combination(double similarity35, int gap, double similarity10, double limit)
+    {
+        if (similarity10 < threshold10)
+            return Double.NaN;
+        double sum = similarity35 * impact35;
+        sum += gapTerms[gap - minGap];
+        sum += similarity10 * impact10;
+        return sum < limit ? Double.NaN : sum / impacts;
+    }
+
+    // Best weighted spacer and -10 terms of the combinations whose spacer starts at the given position
+    private double Reach(double[] similarities10, int spacer, int last)
+    {
+        double reach = Double.NEGATIVE_INFINITY;
+        int end = Math.min(maxGap, last - spacer);
+        for (int gap = minGap; gap <= end; gap++)
+        {
+            double term = gapTerms[gap - minGap] + similarities10[spacer + gap] * impact10;
+            if (term > reach)
+                reach = term;
+        }
+        return reach;
+    }
+
+    // Weighted sum under which a combination can neither reach the threshold nor beat the best similarity. Lowered
+    // by far more than the rounding of the similarity, so it only prunes combinations that are surely worse, and
+    // compared with sums to keep the divisions for the combinations that are really scored.
+    private double Limit(double best)
+    {
+        double sum = Math.max(threshold, best) * impacts;
+        return sum - Math.abs(sum) * 1e-9;
+    }
+
+    Promoter Match(NucleotideRegion region, int start35, int gap, double similarity)
+    {
+        if (start35 < 0)
+            return null;
+        return new Promoter(region.Bytes(start35, length35), gap, region.Bytes(start35 + length35 + gap, length10),
+                similarity);
+    }
+}
@@ -0,0 +1,44 @@
+package qut;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+// PWM similarities of every position of an arena of regions, a lane per position. Kept apart from Sigma70Scanner so
+// the Vector API is only loaded when the module is present.
+final class Sigma70Vectors
+{
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+
+    // Characters past the arena that the last vector may read
+    static final int PADDING = DOUBLES.length();
+
+    private Sigma70Vectors()
+    {
+    }
+
+    // The arena holds the character group of each position. The weight of each column is blended from the weights
+    // of the groups rather than gathered, JDK 17 miscompiling indexed loads in long loops, and the columns are added
+    // in order from zero in each lane: the same operations as the scalar similarity.
+    static double[] Similarities(double[] weights, int groups, int length, double min, double range, double[] arena,
+            int size)
+    {
+        int lanes = DOUBLES.length();
+        double[] similarities = new double[size + lanes];
+        DoubleVector minimum = DoubleVector.broadcast(DOUBLES, min);
+        DoubleVector divisor = DoubleVector.broadcast(DOUBLES, range);
+        for (int position = 0; position < size; position += lanes)
+        {
+            DoubleVector sum = DoubleVector.zero(DOUBLES);
+            for (int column = 0; column < length; column++)
+            {
+                DoubleVector group = DoubleVector.fromArray(DOUBLES, arena, position + column);
+                DoubleVector weight = DoubleVector.broadcast(DOUBLES, weights[column * groups]);
+                for (int g = 1; g < groups; g++)
+                    weight = weight.blend(weights[column * groups + g], group.eq(g));
+                sum = sum.add(weight);
+            }
+            sum.sub(minimum).div(divisor).intoArray(similarities, position);
+        }
+        return similarities;
+    }
+}